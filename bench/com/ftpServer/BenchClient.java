@@ -0,0 +1,154 @@
+package com.cs472;
+
+import java.io.BufferedReader;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A minimal FTP control connection for the benchmarks, which talk to a running server.
+ */
+class BenchClient {
+    private final Socket socket;
+    private final BufferedReader in;
+    private final OutputStream out;
+    private long reads = 0;
+
+    /**
+     * A reply, with every line of a multi-line reply.
+     */
+    static class Reply {
+        final int code;
+        final List<String> lines;
+
+        Reply(int code, List<String> lines) {
+            this.code = code;
+            this.lines = lines;
+        }
+
+        @Override
+        public String toString() {
+            return lines.get(lines.size() - 1);
+        }
+    }
+
+    /**
+     * Connects and reads the welcome message.
+     */
+    BenchClient(String host, int port) throws IOException {
+        socket = new Socket(host, port);
+        socket.setTcpNoDelay(true);
+        InputStream counted = new FilterInputStream(socket.getInputStream()) {
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                int read = super.read(buffer, offset, length);
+                if (read > 0) {
+                    reads++;
+                }
+                return read;
+            }
+        };
+        in = new BufferedReader(new InputStreamReader(counted, StandardCharsets.UTF_8));
+        out = socket.getOutputStream();
+        expect(read(), 220);
+    }
+
+    void login(String user, String password) throws IOException {
+        expect(command("USER " + user), 331);
+        expect(command("PASS " + password), 230);
+    }
+
+    /**
+     * Sends a command and waits for its final reply.
+     */
+    Reply command(String line) throws IOException {
+        send(line);
+        return read();
+    }
+
+    /**
+     * Sends one or more command lines in a single write, without waiting for replies.
+     */
+    void send(String... lines) throws IOException {
+        StringBuilder text = new StringBuilder();
+        for (String line : lines) {
+            text.append(line).append("\r\n");
+        }
+        out.write(text.toString().getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+
+    /**
+     * Reads the next reply, preliminary replies included.
+     */
+    Reply read() throws IOException {
+        List<String> lines = new ArrayList<String>();
+        String line = in.readLine();
+        if (line == null || line.length() < 3) {
+            throw new IOException("Connection closed while waiting for a reply.");
+        }
+        lines.add(line);
+        String code = line.substring(0, 3);
+        if (line.length() > 3 && line.charAt(3) == '-') {
+            do {
+                line = in.readLine();
+                if (line == null) {
+                    throw new IOException("Connection closed in a multi-line reply.");
+                }
+                lines.add(line);
+            } while (!(line.startsWith(code) && (line.length() == 3 || line.charAt(3) == ' ')));
+        }
+        return new Reply(Integer.parseInt(code), lines);
+    }
+
+    /**
+     * Asks for an extended passive port.
+     * @return The port to open data connections to.
+     */
+    int epsv() throws IOException {
+        return epsvPort(command("EPSV"));
+    }
+
+    /**
+     * @return The port in an extended passive reply.
+     */
+    static int epsvPort(Reply reply) throws IOException {
+        String text = expect(reply, 229).toString();
+        String port = text.substring(text.indexOf("(|||") + 4, text.lastIndexOf("|)"));
+        return Integer.parseInt(port);
+    }
+
+    /**
+     * @return The number of reads from the control connection that returned data, which is about the number of
+     * separate writes the server made on a fast link.
+     */
+    long getReads() {
+        return reads;
+    }
+
+    String getHost() {
+        return socket.getInetAddress().getHostAddress();
+    }
+
+    static Reply expect(Reply reply, int code) throws IOException {
+        if (reply.code != code) {
+            throw new IOException("Expected " + code + " but got: " + reply);
+        }
+        return reply;
+    }
+
+    void close() {
+        try {
+            send("QUIT");
+            socket.close();
+        } catch (IOException e) {
+            // Already closed.
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package com.cs472;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Measures the cost of finding the command for a control line and taking its argument, through CommandRegistry
+ * and through the chain of lower case, trim, startsWith and split the session used before it, grown to the same
+ * thirty verbs. Each round runs a mix of common lines, with one unknown verb, and reports nanoseconds and bytes
+ * allocated per line. No server is needed.
+ *
+ * Usage: DispatchBench [rounds = 10] [lines per round = 5000000]
+ */
+public class DispatchBench {
+    private static final String[] VERBS = {"USER", "PASS", "CWD", "CDUP", "PWD", "QUIT", "PASV", "EPSV", "PORT",
+            "EPRT", "AUTH", "PBSZ", "PROT", "TYPE", "MODE", "OPTS", "REST", "RETR", "STOR", "APPE", "STOU", "SIZE",
+            "MDTM", "LIST", "NLST", "MLSD", "MLST", "FEAT", "HELP", "STAT"};
+    private static final String[] LINES = {"USER anonymous", "PASS guest", "TYPE I", "PWD", "EPSV", "SIZE data/big.bin",
+            "MDTM data/big.bin", "RETR data/big.bin", "REST 1048576", "CWD pub", "MLSD", "STOR upload.bin",
+            "NOOP", "STAT"};
+
+    private static long sink = 0; // Keeps the work from being optimized away.
+
+    public static void main(String[] args) {
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        int perRound = args.length > 1 ? Integer.parseInt(args[1]) : 5000000;
+
+        CommandRegistry<long[]> registry = new CommandRegistry<long[]>();
+        for (String verb : VERBS) {
+            final int id = verb.hashCode();
+            registry.register(new CommandRegistry.Command<long[]>(verb, false) {
+                @Override
+                public void run(long[] target, String argument) {
+                    target[0] += id + (argument == null ? 0 : argument.length());
+                }
+            });
+        }
+
+        long[] registryNanos = new long[rounds];
+        long[] chainNanos = new long[rounds];
+        long registryBytes = 0;
+        long chainBytes = 0;
+        long[] target = new long[1];
+        for (int warmup = 0; warmup < 3; warmup++) {
+            registry(registry, target, perRound);
+            chain(perRound);
+        }
+        for (int round = 0; round < rounds; round++) {
+            long bytes = allocatedBytes();
+            long start = System.nanoTime();
+            registry(registry, target, perRound);
+            registryNanos[round] = System.nanoTime() - start;
+            registryBytes += allocatedBytes() - bytes;
+
+            bytes = allocatedBytes();
+            start = System.nanoTime();
+            chain(perRound);
+            chainNanos[round] = System.nanoTime() - start;
+            chainBytes += allocatedBytes() - bytes;
+        }
+        sink += target[0];
+
+        long lines = (long) rounds * perRound;
+        double registryMedian = median(registryNanos) / perRound;
+        double chainMedian = median(chainNanos) / perRound;
+        System.out.println(String.format(Locale.ROOT, "%d rounds of %d lines", rounds, perRound));
+        System.out.println(String.format(Locale.ROOT, "CommandRegistry: %.1f ns/line (median), %.1f bytes/line",
+                registryMedian, (double) registryBytes / lines));
+        System.out.println(String.format(Locale.ROOT, "if/else chain:   %.1f ns/line (median), %.1f bytes/line",
+                chainMedian, (double) chainBytes / lines));
+        System.out.println(String.format(Locale.ROOT, "%.1fx faster (%d)", chainMedian / registryMedian, sink & 1));
+    }
+
+    private static void registry(CommandRegistry<long[]> registry, long[] target, int count) {
+        for (int i = 0; i < count; i++) {
+            String line = LINES[i % LINES.length];
+            CommandRegistry.Command<long[]> command = registry.find(line);
+            if (command == null) {
+                target[0]--;
+            } else {
+                command.run(target, CommandRegistry.argument(line));
+            }
+        }
+    }
+
+    private static void chain(int count) {
+        for (int i = 0; i < count; i++) {
+            sink += chain(LINES[i % LINES.length]);
+        }
+    }
+
+    /**
+     * The dispatch the session used before CommandRegistry, with a branch for every verb it has now.
+     */
+    private static long chain(String line) {
+        String lineParsed = line.toLowerCase().trim();
+        if (lineParsed.startsWith("user ")) {
+            return handle(1, line.split(" ")[1]);
+        } else if (lineParsed.startsWith("pass ")) {
+            return handle(2, line.split(" ")[1]);
+        } else if (lineParsed.startsWith("cwd ")) {
+            return handle(3, line.split(" ")[1]);
+        } else if (lineParsed.startsWith("cdup")) {
+            return handle(4, null);
+        } else if (lineParsed.startsWith("pwd")) {
+            return handle(5, null);
+        } else if (lineParsed.startsWith("quit")) {
+            return handle(6, null);
+        } else if (lineParsed.startsWith("pasv")) {
+            return handle(7, null);
+        } else if (lineParsed.startsWith("epsv")) {
+            return handle(8, null);
+        } else if (lineParsed.startsWith("port ")) {
+            return handle(9, lineParsed.split(" ")[1]);
+        } else if (lineParsed.startsWith("eprt ")) {
+            return handle(10, lineParsed.split(" ")[1]);
+        } else if (lineParsed.startsWith("auth ")) {
+            return handle(11, line.split(" ")[1]);
+        } else if (lineParsed.startsWith("pbsz ")) {
+            return handle(12, line.split(" ")[1]);
+        } else if (lineParsed.startsWith("prot ")) {
+            return handle(13, line.split(" ")[1]);
+        } else if (lineParsed.startsWith("type")) {
+            return handle(14, null);
+        } else if (lineParsed.startsWith("mode ")) {
+            return handle(15, line.split(" ")[1]);
+        } else if (lineParsed.startsWith("opts ")) {
+            return handle(16, line.split(" ")[1]);
+        } else if (lineParsed.startsWith("rest ")) {
+            return handle(17, line.split(" ")[1]);
+        } else if (lineParsed.startsWith("retr ")) {
+            return handle(18, line.split(" ")[1]);
+        } else if (lineParsed.startsWith("stor ")) {
+            return handle(19, line.split(" ")[1]);
+        } else if (lineParsed.startsWith("appe ")) {
+            return handle(20, line.split(" ")[1]);
+        } else if (lineParsed.startsWith("stou")) {
+            return handle(21, null);
+        } else if (lineParsed.startsWith("size ")) {
+            return handle(22, line.split(" ")[1]);
+        } else if (lineParsed.startsWith("mdtm ")) {
+            return handle(23, line.split(" ")[1]);
+        } else if (lineParsed.startsWith("list")) {
+            return handle(24, null);
+        } else if (lineParsed.startsWith("nlst")) {
+            return handle(25, null);
+        } else if (lineParsed.startsWith("mlsd")) {
+            return handle(26, null);
+        } else if (lineParsed.startsWith("mlst")) {
+            return handle(27, null);
+        } else if (lineParsed.startsWith("feat")) {
+            return handle(28, null);
+        } else if (lineParsed.startsWith("help")) {
+            return handle(29, null);
+        } else if (lineParsed.startsWith("stat")) {
+            return handle(30, null);
+        } else {
+            return -1;
+        }
+    }
+
+    private static long handle(int id, String argument) {
+        return id + (argument == null ? 0 : argument.length());
+    }
+
+    private static double median(long[] values) {
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+
+    /**
+     * @return Bytes allocated by this thread so far, or 0 where the JVM does not count them.
+     */
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+}
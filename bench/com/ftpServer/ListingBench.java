@@ -0,0 +1,110 @@
+package com.cs472;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Locale;
+
+/**
+ * Lists a directory in MLSD format through DirectoryLister as it grows to 10k, 100k and 1M empty files, and
+ * reports how much heap outlived the young generation while it was listed. A listing that is streamed entry by
+ * entry keeps that flat however many entries there are, where one built as a String would grow with them.
+ * Run it with a small heap, such as -Xmx32m, which a 1M entry listing (about 100 MB of text) could never fit in.
+ * No server is needed. The files are left in the directory so later runs start faster.
+ *
+ * Usage: ListingBench directory [entries = 1000000]
+ */
+public class ListingBench {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.out.println("Usage: ListingBench directory [entries]");
+            return;
+        }
+        Path directory = Paths.get(args[0]);
+        int entries = args.length > 1 ? Integer.parseInt(args[1]) : 1000000;
+        Files.createDirectories(directory);
+
+        File configFile = File.createTempFile("listingbench", ".conf");
+        configFile.deleteOnExit();
+        Writer config = new FileWriter(configFile);
+        try {
+            config.write("list_cache_ttl = 0\n");
+        } finally {
+            config.close();
+        }
+        DirectoryLister lister = new DirectoryLister(new Config(configFile.getPath()));
+
+        System.out.println(String.format(Locale.ROOT, "max heap %d MB", Runtime.getRuntime().maxMemory() >> 20));
+        int created = 0;
+        for (int size = 10000; created < entries; size = Math.min(size * 10, entries)) {
+            for (; created < size; created++) {
+                Path file = directory.resolve(String.format(Locale.ROOT, "file%07d.dat", created));
+                if (!Files.exists(file)) {
+                    Files.createFile(file);
+                }
+            }
+
+            System.gc();
+            long before = retainedHeap();
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                pool.resetPeakUsage();
+            }
+            CountingStream out = new CountingStream();
+            long start = System.nanoTime();
+            lister.list(directory, DirectoryLister.Format.MLSD, out);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.println(String.format(Locale.ROOT,
+                    "%8d entries: %6.1f MB listed in %5.2f s, heap outside eden %5.1f MB before, %5.1f MB peak",
+                    size, out.count / 1e6, seconds, before / 1e6, peakRetainedHeap() / 1e6));
+        }
+    }
+
+    /**
+     * @return Heap in use outside eden, which is what survived at least one young collection.
+     */
+    private static long retainedHeap() {
+        long used = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && !pool.getName().contains("Eden")) {
+                used += pool.getUsage().getUsed();
+            }
+        }
+        return used;
+    }
+
+    private static long peakRetainedHeap() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && !pool.getName().contains("Eden")) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+
+    /**
+     * Discards what is written, like a fast client.
+     */
+    private static class CountingStream extends OutputStream {
+        private long count = 0;
+
+        @Override
+        public void write(int b) throws IOException {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            count += len;
+        }
+    }
+}
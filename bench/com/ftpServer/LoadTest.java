@@ -0,0 +1,275 @@
+package com.cs472;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Starts the server once for every combination of control_mode (thread, nio) and thread_mode (platform, virtual),
+ * opens N logged in sessions to it, and has 16 client threads send PWD round robin over them. For each mode it
+ * reports the server's thread count and resident memory, read from /proc, and the p50 and p99 command latency.
+ * Each server runs in a temporary directory with its own config, from the classes on this benchmark's class path,
+ * and the directory is kept with the server's logs if the run fails.
+ * Linux only, and the open file limit must allow two descriptors per session.
+ *
+ * Usage: LoadTest [sessions = 2000] [commands per session = 20]
+ */
+public class LoadTest {
+    private static final String[][] MODES = {{"thread", "platform"}, {"thread", "virtual"}, {"nio", "platform"},
+            {"nio", "virtual"}};
+    private static final int DRIVERS = 16;
+    private static final long START_TIMEOUT = 10000;
+
+    public static void main(String[] args) throws Exception {
+        int sessions = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int commands = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+
+        System.out.println(String.format(Locale.ROOT, "%d sessions, %d PWD each from %d client threads",
+                sessions, commands, DRIVERS));
+        for (String[] mode : MODES) {
+            run(mode[0], mode[1], sessions, commands);
+        }
+    }
+
+    private static void run(String controlMode, String threadMode, int sessions, int commands) throws Exception {
+        File directory = createServerDirectory(controlMode, threadMode, sessions);
+        int port = freePort();
+        ProcessBuilder builder = new ProcessBuilder(new File(System.getProperty("java.home"), "bin/java").getPath(),
+                "-cp", absoluteClassPath(), "com.cs472.Main", String.valueOf(port), String.valueOf(freePort()));
+        builder.directory(directory);
+        builder.redirectErrorStream(true);
+        builder.redirectOutput(new File(directory, "server.out"));
+        Process server = builder.start();
+
+        final List<BenchClient> clients = new ArrayList<BenchClient>();
+        boolean clean = false; // The directory is kept when something fails, for its logs.
+        try {
+            waitForPort(server, port, directory);
+            long idleThreads = status(server.pid(), "Threads:");
+
+            long start = System.nanoTime();
+            for (int i = 0; i < sessions; i++) {
+                BenchClient client = new BenchClient("127.0.0.1", port);
+                clients.add(client);
+                client.login("loadUser", "loadPassword");
+            }
+            double openSeconds = (System.nanoTime() - start) / 1e9;
+
+            final long[][] latencies = new long[DRIVERS][];
+            final IOException[] failure = new IOException[1];
+            Thread[] drivers = new Thread[DRIVERS];
+            for (int d = 0; d < DRIVERS; d++) {
+                final int driver = d;
+                final int count = commands;
+                drivers[d] = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        latencies[driver] = drive(clients, driver, count, failure);
+                    }
+                });
+                drivers[d].start();
+            }
+            for (Thread driver : drivers) {
+                driver.join();
+            }
+            if (failure[0] != null) {
+                throw failure[0];
+            }
+
+            long threads = status(server.pid(), "Threads:");
+            long rssKb = status(server.pid(), "VmRSS:");
+            long[] all = merge(latencies);
+            String fallback = serverLogContains(directory, "Virtual threads are not supported")
+                    ? " (no virtual threads in this JVM, ran on platform threads)" : "";
+            System.out.println(String.format(Locale.ROOT,
+                    "%-6s %-8s threads %5d (%d idle), RSS %6.1f MB, opened in %5.2f s, PWD p50 %6.3f ms, p99 %6.3f ms%s",
+                    controlMode, threadMode, threads, idleThreads, rssKb / 1024.0, openSeconds,
+                    quantile(all, 0.50) / 1e6, quantile(all, 0.99) / 1e6, fallback));
+            clean = true;
+        } finally {
+            for (BenchClient client : clients) {
+                client.close();
+            }
+            server.destroy();
+            server.waitFor();
+            if (clean) {
+                delete(directory);
+            }
+        }
+    }
+
+    /**
+     * Sends PWD round robin to every session numbered driver modulo DRIVERS.
+     * @return The latency of every command, in nanoseconds.
+     */
+    private static long[] drive(List<BenchClient> clients, int driver, int commands, IOException[] failure) {
+        List<BenchClient> mine = new ArrayList<BenchClient>();
+        for (int i = driver; i < clients.size(); i += DRIVERS) {
+            mine.add(clients.get(i));
+        }
+        long[] latencies = new long[mine.size() * commands];
+        int next = 0;
+        try {
+            for (int round = 0; round < commands; round++) {
+                for (BenchClient client : mine) {
+                    long start = System.nanoTime();
+                    BenchClient.expect(client.command("PWD"), 257);
+                    latencies[next++] = System.nanoTime() - start;
+                }
+            }
+        } catch (IOException e) {
+            synchronized (failure) {
+                failure[0] = e;
+            }
+        }
+        return Arrays.copyOf(latencies, next);
+    }
+
+    /**
+     * Writes a config for the mode, with every connection limit raised above the number of sessions, and a user.
+     */
+    private static File createServerDirectory(String controlMode, String threadMode, int sessions) throws IOException {
+        File directory = File.createTempFile("loadtest", "");
+        if (!directory.delete() || !new File(directory, "logs").mkdirs()) {
+            throw new IOException("Unable to create " + directory);
+        }
+        Writer config = new FileWriter(new File(directory, "ftpserverd.conf"));
+        try {
+            config.write("usernamefile = users.csv\n");
+            config.write("logdirectory = logs\n");
+            config.write("control_mode = " + controlMode + "\n");
+            config.write("thread_mode = " + threadMode + "\n");
+            config.write("max_threads = " + (sessions + 64) + "\n");
+            config.write("max_connections = " + (sessions + 64) + "\n");
+            config.write("max_connections_per_ip = " + (sessions + 64) + "\n");
+            config.write("connection_rate = 0\n");
+            config.write("config_reload_interval = 0\n");
+        } finally {
+            config.close();
+        }
+        Writer users = new FileWriter(new File(directory, "users.csv"));
+        try {
+            users.write("loadUser,loadPassword");
+        } finally {
+            users.close();
+        }
+        return directory;
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static String absoluteClassPath() {
+        StringBuilder path = new StringBuilder();
+        for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+            if (path.length() > 0) {
+                path.append(File.pathSeparator);
+            }
+            path.append(new File(entry).getAbsolutePath());
+        }
+        return path.toString();
+    }
+
+    private static int freePort() throws IOException {
+        ServerSocket socket = new ServerSocket(0);
+        try {
+            return socket.getLocalPort();
+        } finally {
+            socket.close();
+        }
+    }
+
+    private static void waitForPort(Process server, int port, File directory) throws Exception {
+        long deadline = System.currentTimeMillis() + START_TIMEOUT;
+        while (true) {
+            try {
+                new Socket("127.0.0.1", port).close();
+                return;
+            } catch (IOException e) {
+                if (!server.isAlive()) {
+                    throw new IOException("The server exited, see " + new File(directory, "server.out") + ".");
+                }
+                if (System.currentTimeMillis() > deadline) {
+                    throw new IOException("The server did not start listening on " + port + ".");
+                }
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    /**
+     * @return The first number on the line of /proc/pid/status starting with field.
+     */
+    private static long status(long pid, String field) throws IOException {
+        BufferedReader reader = new BufferedReader(new FileReader("/proc/" + pid + "/status"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith(field)) {
+                    return Long.parseLong(line.substring(field.length()).trim().split("\\s+")[0]);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        throw new IOException("No " + field + " in /proc/" + pid + "/status.");
+    }
+
+    private static boolean serverLogContains(File directory, String text) throws IOException {
+        List<File> files = new ArrayList<File>();
+        files.add(new File(directory, "server.out"));
+        File[] logs = new File(directory, "logs").listFiles();
+        if (logs != null) {
+            files.addAll(Arrays.asList(logs));
+        }
+        for (File file : files) {
+            BufferedReader reader = new BufferedReader(new FileReader(file));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.contains(text)) {
+                        return true;
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        }
+        return false;
+    }
+
+    private static long[] merge(long[][] parts) {
+        int length = 0;
+        for (long[] part : parts) {
+            length += part.length;
+        }
+        long[] all = new long[length];
+        int next = 0;
+        for (long[] part : parts) {
+            System.arraycopy(part, 0, all, next, part.length);
+            next += part.length;
+        }
+        Arrays.sort(all);
+        return all;
+    }
+
+    private static double quantile(long[] sorted, double quantile) {
+        return sorted[Math.min(sorted.length - 1, (int) (quantile * sorted.length))];
+    }
+}
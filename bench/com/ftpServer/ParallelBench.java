@@ -0,0 +1,195 @@
+package com.cs472;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Downloads one file from a running server over 1, 2, 4 and 8 parallel data connections (OPTS RETR PARALLEL=n),
+ * with every connection passed through a relay that adds a round trip of latency and keeps at most a window of
+ * bytes in flight, like a TCP stream on a long WAN link. One stream is then limited to window / rtt, and
+ * throughput should grow with the number of streams until the server or the disk is the limit.
+ *
+ * Usage: ParallelBench host port user password file [rtt ms = 20] [window bytes = 262144]
+ */
+public class ParallelBench {
+    private static final Pattern RANGE = Pattern.compile("^150-RANGE (\\d+) (\\d+) (\\d+)$");
+    private static final int[] STREAMS = {1, 2, 4, 8};
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 5) {
+            System.out.println("Usage: ParallelBench host port user password file [rtt ms] [window bytes]");
+            return;
+        }
+        String host = args[0];
+        int port = Integer.parseInt(args[1]);
+        long rttNanos = (args.length > 5 ? Long.parseLong(args[5]) : 20) * 1000000L;
+        int window = args.length > 6 ? Integer.parseInt(args[6]) : 256 * 1024;
+
+        System.out.println(String.format(Locale.ROOT, "rtt %d ms, window %d bytes, one stream is limited to %.1f MB/s",
+                rttNanos / 1000000, window, window / (rttNanos / 1e9) / 1e6));
+        double single = 0;
+        for (int streams : STREAMS) {
+            BenchClient client = new BenchClient(host, port);
+            client.login(args[2], args[3]);
+            BenchClient.expect(client.command("TYPE I"), 200);
+            if (streams > 1) {
+                BenchClient.expect(client.command("OPTS RETR PARALLEL=" + streams), 200);
+            }
+            long start = System.nanoTime();
+            long bytes = download(client, args[4], streams, rttNanos, window);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            client.close();
+
+            double rate = bytes / seconds / 1e6;
+            if (streams == 1) {
+                single = rate;
+            }
+            System.out.println(String.format(Locale.ROOT, "%d streams: %d bytes in %.2f s, %.1f MB/s, %.2fx",
+                    streams, bytes, seconds, rate, rate / single));
+        }
+    }
+
+    /**
+     * Opens the data connections one at a time, so they are accepted in order, then reads every range.
+     * @return The number of bytes received.
+     */
+    private static long download(BenchClient client, String file, int streams, long rttNanos, int window) throws Exception {
+        int dataPort = client.epsv();
+        List<Socket> sockets = new ArrayList<Socket>();
+        for (int i = 0; i < streams; i++) {
+            sockets.add(new Socket(client.getHost(), dataPort));
+        }
+        client.send("RETR " + file);
+        BenchClient.Reply opening = BenchClient.expect(client.read(), 150);
+
+        long[] lengths = new long[streams];
+        if (streams == 1) {
+            lengths[0] = -1; // Up to the end of the file.
+        } else {
+            for (String line : opening.lines) {
+                Matcher range = RANGE.matcher(line);
+                if (range.matches()) {
+                    lengths[Integer.parseInt(range.group(1)) - 1] = Long.parseLong(range.group(3));
+                }
+            }
+        }
+
+        // Every stream is read and delivered on its own threads, as a client would.
+        final long[] received = new long[streams];
+        List<Thread> consumers = new ArrayList<Thread>();
+        for (int i = 0; i < streams; i++) {
+            final Relay relay = new Relay(sockets.get(i).getInputStream(), rttNanos, window);
+            final int stream = i;
+            relay.start();
+            Thread consumer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        received[stream] = relay.drain();
+                    } catch (InterruptedException e) {
+                        received[stream] = -1;
+                    }
+                }
+            });
+            consumer.start();
+            consumers.add(consumer);
+        }
+        long total = 0;
+        for (int i = 0; i < streams; i++) {
+            consumers.get(i).join();
+            sockets.get(i).close();
+            if (received[i] < 0 || (lengths[i] >= 0 && received[i] != lengths[i])) {
+                throw new IOException("Range " + (i + 1) + " was " + received[i] + " bytes, expected " + lengths[i] + ".");
+            }
+            total += received[i];
+        }
+        BenchClient.expect(client.read(), 226);
+        return total;
+    }
+
+    /**
+     * Reads a connection on its own thread and hands each chunk on a round trip after it was read. Reading stops
+     * while a window of bytes is waiting, which holds the sender back the way a receive window would.
+     */
+    private static class Relay extends Thread {
+        private final InputStream in;
+        private final long delayNanos;
+        private final int window;
+        private final ArrayDeque<long[]> due = new ArrayDeque<long[]>(); // {time it is delivered, length}, -1 ends.
+        private long waiting = 0;
+
+        Relay(InputStream in, long delayNanos, int window) {
+            this.in = in;
+            this.delayNanos = delayNanos;
+            this.window = window;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            byte[] buffer = new byte[Math.min(window, 64 * 1024)];
+            try {
+                int read;
+                do {
+                    int room;
+                    synchronized (this) {
+                        while (waiting >= window) {
+                            wait();
+                        }
+                        room = (int) Math.min(buffer.length, window - waiting);
+                    }
+                    read = in.read(buffer, 0, room);
+                    synchronized (this) {
+                        due.add(new long[]{System.nanoTime() + delayNanos, read});
+                        waiting += Math.max(0, read);
+                        notifyAll();
+                    }
+                } while (read >= 0);
+            } catch (IOException e) {
+                synchronized (this) {
+                    due.add(new long[]{System.nanoTime(), -1});
+                    notifyAll();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * Takes every chunk once it is due.
+         * @return The number of bytes delivered before the end of the stream.
+         */
+        long drain() throws InterruptedException {
+            long delivered = 0;
+            while (true) {
+                long[] chunk;
+                synchronized (this) {
+                    while (due.isEmpty()) {
+                        wait();
+                    }
+                    chunk = due.peek();
+                }
+                long sleep = chunk[0] - System.nanoTime();
+                if (sleep > 0) {
+                    Thread.sleep(sleep / 1000000, (int) (sleep % 1000000));
+                }
+                if (chunk[1] < 0) {
+                    return delivered;
+                }
+                synchronized (this) {
+                    due.poll();
+                    waiting -= chunk[1];
+                    notifyAll();
+                }
+                delivered += chunk[1];
+            }
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package com.cs472;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.util.Locale;
+
+/**
+ * Mirrors a set of small files from a running server the way a mirroring tool does, with TYPE, SIZE, MDTM, EPSV
+ * and RETR for every file. It runs once waiting for each reply before sending the next command, and once sending
+ * the commands before RETR in a single write. Over loopback, it reports the time per file and how many separate
+ * reads the control replies took, which shows whether the server answered a pipelined batch in one write.
+ *
+ * Usage: PipelineBench host port user password [rounds = 200] file...
+ */
+public class PipelineBench {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 5) {
+            System.out.println("Usage: PipelineBench host port user password [rounds] file...");
+            return;
+        }
+        String host = args[0];
+        int port = Integer.parseInt(args[1]);
+        int first = 4;
+        int rounds = 200;
+        if (args[4].matches("\\d+")) {
+            rounds = Integer.parseInt(args[4]);
+            first = 5;
+        }
+        String[] files = new String[args.length - first];
+        System.arraycopy(args, first, files, 0, files.length);
+
+        for (boolean pipelined : new boolean[]{false, true, false, true}) { // The first pair warms the server up.
+            BenchClient client = new BenchClient(host, port);
+            client.login(args[2], args[3]);
+            long reads = client.getReads();
+            long bytes = 0;
+            long start = System.nanoTime();
+            for (int round = 0; round < rounds; round++) {
+                for (String file : files) {
+                    bytes += mirror(client, file, pipelined);
+                }
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            reads = client.getReads() - reads;
+            client.close();
+
+            int count = rounds * files.length;
+            System.out.println(String.format(Locale.ROOT,
+                    "%-9s %d files, %d bytes in %.2f s: %.3f ms/file, %.1f control reads/file",
+                    pipelined ? "pipelined" : "lockstep", count, bytes, seconds, seconds * 1000 / count,
+                    (double) reads / count));
+        }
+    }
+
+    /**
+     * @return The number of bytes downloaded.
+     */
+    private static long mirror(BenchClient client, String file, boolean pipelined) throws IOException {
+        int dataPort;
+        if (pipelined) {
+            client.send("TYPE I", "SIZE " + file, "MDTM " + file, "EPSV");
+            BenchClient.expect(client.read(), 200);
+            BenchClient.expect(client.read(), 213);
+            BenchClient.expect(client.read(), 213);
+            dataPort = BenchClient.epsvPort(client.read());
+        } else {
+            BenchClient.expect(client.command("TYPE I"), 200);
+            BenchClient.expect(client.command("SIZE " + file), 213);
+            BenchClient.expect(client.command("MDTM " + file), 213);
+            dataPort = client.epsv();
+        }
+
+        Socket data = new Socket(client.getHost(), dataPort);
+        try {
+            // RETR needs the data connection, so its replies are never held back.
+            BenchClient.expect(client.command("RETR " + file), 150);
+            InputStream in = data.getInputStream();
+            byte[] buffer = new byte[64 * 1024];
+            long bytes = 0;
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                bytes += read;
+            }
+            BenchClient.expect(client.read(), 226);
+            return bytes;
+        } finally {
+            data.close();
+        }
+    }
+}
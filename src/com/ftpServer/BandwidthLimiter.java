@@ -0,0 +1,157 @@
+package com.cs472;
+
+import java.net.InetAddress;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Holds the token buckets that cap data connection bandwidth: one global bucket, one per client address and
+ * one per user, all in bytes per second. Every transfer takes its bytes from all three, so the limits nest.
+ * The limits can be changed at runtime with reload. Per address and per user buckets count the throttles
+ * holding them, and are only dropped once none do, so a running transfer's bucket always stays in use.
+ */
+public class BandwidthLimiter {
+    private static final long IDLE_NANOS = TimeUnit.MINUTES.toNanos(1);
+    private static final int REMOVED = -1; // Marks a bucket that has been taken out of its map.
+
+    /**
+     * A bucket and the number of throttles holding it.
+     */
+    private static class Shared {
+        final TokenBucket bucket;
+        final AtomicInteger holders = new AtomicInteger();
+
+        Shared(TokenBucket bucket) {
+            this.bucket = bucket;
+        }
+    }
+
+    private volatile long globalRate;
+    private volatile long perAddressRate;
+    private volatile long perUserRate;
+    private volatile long burst;
+
+    private final TokenBucket global;
+    private final ConcurrentMap<InetAddress, Shared> perAddress = new ConcurrentHashMap<InetAddress, Shared>();
+    private final ConcurrentMap<String, Shared> perUser = new ConcurrentHashMap<String, Shared>();
+
+    public BandwidthLimiter(Config config) {
+        long[] limits = readLimits(config);
+        globalRate = limits[0];
+        perAddressRate = limits[1];
+        perUserRate = limits[2];
+        burst = limits[3];
+        global = new TokenBucket(globalRate, burst);
+    }
+
+    /**
+     * @return The global, per address and per user rates and the burst size.
+     * @throws IllegalArgumentException If a setting is not a number.
+     */
+    private static long[] readLimits(Config config) {
+        String[] keys = {Config.BANDWIDTH_GLOBAL, Config.BANDWIDTH_PER_IP, Config.BANDWIDTH_PER_USER, Config.BANDWIDTH_BURST};
+        long[] limits = new long[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            Integer value = config.getInt(keys[i]);
+            if (value == null || value < 0) {
+                throw new IllegalArgumentException("Invalid " + keys[i] + " setting.");
+            }
+            limits[i] = value;
+        }
+        return limits;
+    }
+
+    /**
+     * Applies the limits in a newly read config to every bucket, including transfers already running.
+     * @return True if any limit changed.
+     * @throws IllegalArgumentException If a setting is invalid, the old limits are kept then.
+     */
+    public boolean reload(Config config) {
+        long[] limits = readLimits(config);
+        if (limits[0] == globalRate && limits[1] == perAddressRate && limits[2] == perUserRate && limits[3] == burst) {
+            return false;
+        }
+        globalRate = limits[0];
+        perAddressRate = limits[1];
+        perUserRate = limits[2];
+        burst = limits[3];
+        global.setRate(globalRate, burst);
+        for (Shared shared : perAddress.values()) {
+            shared.bucket.setRate(perAddressRate, burst);
+        }
+        for (Shared shared : perUser.values()) {
+            shared.bucket.setRate(perUserRate, burst);
+        }
+        return true;
+    }
+
+    /**
+     * Creates the throttle for one transfer. It must be released when the transfer ends.
+     * @param user The logged in user.
+     * @param address The client address.
+     * @param progress Run as the transfer moves each chunk, may be null.
+     */
+    public Throttle throttle(String user, InetAddress address, Runnable progress) {
+        final Shared addressBucket = hold(perAddress, address, perAddressRate);
+        final Shared userBucket = hold(perUser, user == null ? "" : user, perUserRate);
+        return new Throttle(new TokenBucket[]{userBucket.bucket, addressBucket.bucket, global}, progress) {
+            private final AtomicBoolean released = new AtomicBoolean();
+
+            @Override
+            public void release() {
+                if (released.compareAndSet(false, true)) {
+                    userBucket.holders.decrementAndGet();
+                    addressBucket.holders.decrementAndGet();
+                }
+            }
+        };
+    }
+
+    /**
+     * Finds or creates the bucket for a key and counts one more holder of it.
+     */
+    private <K> Shared hold(ConcurrentMap<K, Shared> buckets, K key, long rate) {
+        while (true) {
+            Shared shared = buckets.get(key);
+            if (shared == null) {
+                Shared created = new Shared(new TokenBucket(rate, burst));
+                shared = buckets.putIfAbsent(key, created);
+                if (shared == null) {
+                    shared = created;
+                }
+            }
+            int holders = shared.holders.get();
+            if (holders == REMOVED) {
+                buckets.remove(key, shared); // Being removed by sweep, retry with a new bucket.
+                continue;
+            }
+            if (shared.holders.compareAndSet(holders, holders + 1)) {
+                return shared;
+            }
+        }
+    }
+
+    /**
+     * Drops buckets that no transfer holds and that have been full for a while. A full bucket behaves exactly
+     * like a new one, so a client that comes back later loses nothing.
+     */
+    public void sweep() {
+        sweep(perAddress);
+        sweep(perUser);
+    }
+
+    private static <K> void sweep(Map<K, Shared> buckets) {
+        Iterator<Shared> entries = buckets.values().iterator();
+        while (entries.hasNext()) {
+            Shared shared = entries.next();
+            if (shared.holders.get() == 0 && shared.bucket.isIdle(IDLE_NANOS) && shared.holders.compareAndSet(0, REMOVED)) {
+                entries.remove();
+            }
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package com.cs472;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A shared pool of fixed size direct buffers used by data transfers.
+ */
+public class BufferPool {
+    public static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_POOLED = 64;
+
+    private static final BlockingQueue<ByteBuffer> pool = new ArrayBlockingQueue<ByteBuffer>(MAX_POOLED);
+
+    /**
+     * Takes a cleared buffer from the pool, allocating a new one if the pool is empty.
+     */
+    public static ByteBuffer acquire() {
+        ByteBuffer buffer = pool.poll();
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer to the pool. Buffers beyond the pool capacity are left to the garbage collector.
+     */
+    public static void release(ByteBuffer buffer) {
+        if (buffer != null && buffer.isDirect() && buffer.capacity() == BUFFER_SIZE) {
+            pool.offer(buffer);
+        }
+    }
+}
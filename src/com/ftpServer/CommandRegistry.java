@@ -0,0 +1,146 @@
+package com.cs472;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Maps control connection verbs to the commands that handle them. A verb of up to four letters is packed into
+ * an int, case folded, straight from the line, so finding a command allocates nothing and does not depend on
+ * how many commands are registered.
+ * @param <T> What commands act on, such as the session.
+ */
+public class CommandRegistry<T> {
+    private static final int MAX_VERB_LENGTH = 4;
+    private static final int TABLE_SIZE = 128; // A power of two well above the number of commands.
+
+    /**
+     * Handles one verb.
+     */
+    public abstract static class Command<T> {
+        private final String verb;
+        private final boolean argumentRequired;
+
+        /**
+         * @param verb The verb, such as "RETR".
+         * @param argumentRequired True if the command is refused without an argument.
+         */
+        protected Command(String verb, boolean argumentRequired) {
+            this.verb = verb;
+            this.argumentRequired = argumentRequired;
+        }
+
+        public String getVerb() {
+            return verb;
+        }
+
+        public boolean isArgumentRequired() {
+            return argumentRequired;
+        }
+
+        /**
+         * @param argument Everything after the verb with surrounding whitespace removed, or null if there is nothing.
+         */
+        public abstract void run(T target, String argument);
+    }
+
+    private final int[] keys = new int[TABLE_SIZE]; // 0 marks an empty slot.
+    private final Object[] commands = new Object[TABLE_SIZE];
+    private final List<String> verbs = new ArrayList<String>();
+
+    /**
+     * Adds a command, replacing any command already registered for its verb.
+     */
+    public void register(Command<T> command) {
+        int key = key(command.getVerb(), 0);
+        if (key == 0 || command.getVerb().length() > MAX_VERB_LENGTH) {
+            throw new IllegalArgumentException("Invalid verb " + command.getVerb());
+        }
+        int slot = slot(key);
+        if (keys[slot] == 0) {
+            if (verbs.size() >= TABLE_SIZE / 2) {
+                throw new IllegalStateException("Too many commands.");
+            }
+            verbs.add(command.getVerb());
+        }
+        keys[slot] = key;
+        commands[slot] = command;
+    }
+
+    /**
+     * @return The command for the verb at the start of the line, or null if there is none.
+     */
+    @SuppressWarnings("unchecked")
+    public Command<T> find(CharSequence line) {
+        int key = key(line, start(line));
+        if (key == 0) {
+            return null;
+        }
+        return (Command<T>) commands[slot(key)];
+    }
+
+    /**
+     * @return Every registered verb, in the order they were registered.
+     */
+    public List<String> getVerbs() {
+        return verbs;
+    }
+
+    /**
+     * @return The argument after the verb, with surrounding whitespace removed, or null if there is none.
+     * Spaces inside the argument are kept, so file names can contain them.
+     */
+    public static String argument(String line) {
+        int start = start(line);
+        int end = line.length();
+        while (start < end && line.charAt(start) > ' ') {
+            start++; // Skip the verb.
+        }
+        while (start < end && line.charAt(start) <= ' ') {
+            start++;
+        }
+        while (end > start && line.charAt(end - 1) <= ' ') {
+            end--;
+        }
+        return start == end ? null : line.substring(start, end);
+    }
+
+    private static int start(CharSequence line) {
+        int start = 0;
+        while (start < line.length() && line.charAt(start) <= ' ') {
+            start++;
+        }
+        return start;
+    }
+
+    /**
+     * Packs the verb starting at start into an int, one lower case ASCII letter per byte.
+     * @return 0 if it is not a verb of one to four letters.
+     */
+    private static int key(CharSequence line, int start) {
+        int key = 0;
+        int length = 0;
+        for (int i = start; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c <= ' ') {
+                break;
+            }
+            c |= 0x20; // ASCII lower case.
+            if (c < 'a' || c > 'z' || ++length > MAX_VERB_LENGTH) {
+                return 0;
+            }
+            key = (key << 8) | c;
+        }
+        return key;
+    }
+
+    /**
+     * @return The slot holding key, or the empty slot where it belongs.
+     */
+    private int slot(int key) {
+        int slot = (key * 0x9E3779B9) >>> 25; // Fibonacci hashing onto the top 7 bits.
+        while (keys[slot] != 0 && keys[slot] != key) {
+            slot = (slot + 1) & (TABLE_SIZE - 1);
+        }
+        return slot;
+    }
+}
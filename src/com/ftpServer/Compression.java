@@ -0,0 +1,132 @@
+package com.cs472;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Shared Deflater and Inflater pools for MODE Z, and the heuristic that picks a compression level per file.
+ * Deflaters hold native memory, so they are reset and reused rather than created for every transfer.
+ */
+public class Compression {
+    private static final int MAX_POOLED = 32;
+    private static final int SAMPLE_SIZE = 64 * 1024;
+
+    // Sampled bytes with more bits of entropy per byte than this are treated as already compressed.
+    private static final double INCOMPRESSIBLE_ENTROPY = 7.5;
+    private static final double LOW_GAIN_ENTROPY = 6.0;
+
+    private static final Set<String> COMPRESSED_EXTENSIONS = new HashSet<String>(Arrays.asList(
+            "7z", "aac", "apk", "avi", "br", "bz2", "docx", "flac", "gif", "gz", "heic", "jar", "jpeg", "jpg",
+            "lz4", "lzma", "m4a", "mkv", "mov", "mp3", "mp4", "ogg", "png", "pptx", "rar", "tbz2", "tgz", "txz",
+            "webm", "webp", "xlsx", "xz", "zip", "zst"));
+
+    private static final BlockingQueue<Deflater> deflaters = new ArrayBlockingQueue<Deflater>(MAX_POOLED);
+    private static final BlockingQueue<Inflater> inflaters = new ArrayBlockingQueue<Inflater>(MAX_POOLED);
+
+    /**
+     * Takes a reset Deflater from the pool, creating one if the pool is empty.
+     */
+    public static Deflater acquireDeflater(int level) {
+        Deflater deflater = deflaters.poll();
+        if (deflater == null) {
+            deflater = new Deflater(level);
+        } else {
+            deflater.setLevel(level);
+        }
+        return deflater;
+    }
+
+    /**
+     * Resets the Deflater and returns it to the pool, or frees it if the pool is full.
+     */
+    public static void release(Deflater deflater) {
+        deflater.reset();
+        if (!deflaters.offer(deflater)) {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Takes a reset Inflater from the pool, creating one if the pool is empty.
+     */
+    public static Inflater acquireInflater() {
+        Inflater inflater = inflaters.poll();
+        return inflater != null ? inflater : new Inflater();
+    }
+
+    /**
+     * Resets the Inflater and returns it to the pool, or frees it if the pool is full.
+     */
+    public static void release(Inflater inflater) {
+        inflater.reset();
+        if (!inflaters.offer(inflater)) {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Picks the level to send a file with. Files that are already compressed, by extension or by the entropy of
+     * a sample from the start position, are sent as stored deflate blocks so no CPU is spent for no gain.
+     * @param level The configured level, used for files that look compressible.
+     */
+    public static int chooseLevel(String filename, FileChannel source, long position, int level) {
+        int dot = filename.lastIndexOf('.');
+        if (dot >= 0 && COMPRESSED_EXTENSIONS.contains(filename.substring(dot + 1).toLowerCase(Locale.ROOT))) {
+            return Deflater.NO_COMPRESSION;
+        }
+
+        double entropy;
+        try {
+            entropy = sampleEntropy(source, position);
+        } catch (IOException e) {
+            return level;
+        }
+        if (entropy > INCOMPRESSIBLE_ENTROPY) {
+            return Deflater.NO_COMPRESSION;
+        } else if (entropy > LOW_GAIN_ENTROPY) {
+            return Math.min(level, Deflater.BEST_SPEED);
+        }
+        return level;
+    }
+
+    /**
+     * @return The Shannon entropy, in bits per byte, of up to SAMPLE_SIZE bytes read at position.
+     */
+    private static double sampleEntropy(FileChannel source, long position) throws IOException {
+        ByteBuffer buffer = BufferPool.acquire();
+        try {
+            buffer.limit(Math.min(buffer.capacity(), SAMPLE_SIZE));
+            while (buffer.hasRemaining() && source.read(buffer, position + buffer.position()) > 0) {
+                // Keep reading until the sample is full or the file ends.
+            }
+            buffer.flip();
+            int total = buffer.remaining();
+            if (total == 0) {
+                return 0;
+            }
+            int[] counts = new int[256];
+            while (buffer.hasRemaining()) {
+                counts[buffer.get() & 0xff]++;
+            }
+            double entropy = 0;
+            for (int count : counts) {
+                if (count > 0) {
+                    double p = (double) count / total;
+                    entropy -= p * Math.log(p);
+                }
+            }
+            return entropy / Math.log(2);
+        } finally {
+            BufferPool.release(buffer);
+        }
+    }
+}
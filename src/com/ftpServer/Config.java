@@ -12,8 +12,58 @@ public class Config {
     public static final String USERNAME_FILE = "usernamefile";
     public static final String PORT_MODE = "port_mode";
     public static final String PASV_MODE = "pasv_mode";
+    public static final String CONTROL_MODE = "control_mode";
+    public static final String CONTROL_EVENT_LOOPS = "control_event_loops";
+    public static final String CONTROL_WORKER_THREADS = "control_worker_threads";
+    public static final String THREAD_MODE = "thread_mode";
+    public static final String MAX_THREADS = "max_threads";
+    public static final String IDLE_TIMEOUT = "idle_timeout";
+    public static final String LIST_CACHE_TTL = "list_cache_ttl";
+    public static final String LIST_CACHE_ENTRIES = "list_cache_entries";
+    public static final String LOG_MODE = "log_mode";
+    public static final String LOG_QUEUE_SIZE = "log_queue_size";
+    public static final String LOG_FLUSH_INTERVAL = "log_flush_interval";
+    public static final String LOG_FLUSH_BYTES = "log_flush_bytes";
+    public static final String LOG_OVERFLOW = "log_overflow";
+    public static final String LOG_MAX_SIZE = "log_max_size";
+    public static final String LOG_ROTATE_INTERVAL = "log_rotate_interval";
+    public static final String LOG_MMAP = "log_mmap";
+    public static final String TRANSFER_LOG = "transfer_log";
+    public static final String LOG_TIME_FORMAT = "log_time_format";
+    public static final String UPLOAD_FSYNC = "upload_fsync";
+    public static final String MAX_PARALLEL_STREAMS = "max_parallel_streams";
+    public static final String MODE_Z_LEVEL = "mode_z_level";
+    public static final String PASV_PORT_MIN = "pasv_port_min";
+    public static final String PASV_PORT_MAX = "pasv_port_max";
+    public static final String PASV_ADDRESS = "pasv_address";
+    public static final String KEYSTORE = "keystore";
+    public static final String KEYSTORE_PASSWORD = "keystore_password";
+    public static final String TLS_PROTOCOLS = "tls_protocols";
+    public static final String TLS_CIPHERS = "tls_ciphers";
+    public static final String TLS_SESSION_CACHE_SIZE = "tls_session_cache_size";
+    public static final String TLS_SESSION_TIMEOUT = "tls_session_timeout";
+    public static final String TLS_SESSION_TICKETS = "tls_session_tickets";
+    public static final String MAX_CONNECTIONS = "max_connections";
+    public static final String MAX_CONNECTIONS_PER_IP = "max_connections_per_ip";
+    public static final String CONNECTION_RATE = "connection_rate";
+    public static final String CONNECTION_BURST = "connection_burst";
+    public static final String BANDWIDTH_GLOBAL = "bandwidth_global";
+    public static final String BANDWIDTH_PER_IP = "bandwidth_per_ip";
+    public static final String BANDWIDTH_PER_USER = "bandwidth_per_user";
+    public static final String BANDWIDTH_BURST = "bandwidth_burst";
+    public static final String CONFIG_RELOAD_INTERVAL = "config_reload_interval";
+    public static final String CREDENTIAL_CACHE_TTL = "credential_cache_ttl";
+    public static final String LOGIN_FAILURE_RATE = "login_failure_rate";
+    public static final String LOGIN_FAILURE_BURST = "login_failure_burst";
+    public static final String FILE_CACHE_SIZE = "file_cache_size";
+    public static final String FILE_CACHE_MAX_FILE = "file_cache_max_file";
+    public static final String TLS_MMAP_RETR = "tls_mmap_retr";
+    public static final String TLS_MMAP_MAX_MAPPINGS = "tls_mmap_max_mappings";
+    public static final String METRICS_PORT = "metrics_port";
+    public static final String METRICS_ADDRESS = "metrics_address";
 
 
+    private final String path;
     private Map<String, String> configParts;
     private static final Map<String, String> defaults;
     static {
@@ -23,16 +73,67 @@ public class Config {
         defaults.put(USERNAME_FILE, "ftp.users");
         defaults.put(PORT_MODE, "no");
         defaults.put(PASV_MODE, "yes");
+        defaults.put(CONTROL_MODE, "thread");
+        defaults.put(CONTROL_EVENT_LOOPS, "1");
+        defaults.put(CONTROL_WORKER_THREADS, "16");
+        defaults.put(THREAD_MODE, "platform");
+        defaults.put(MAX_THREADS, "1000");
+        defaults.put(IDLE_TIMEOUT, "600");
+        defaults.put(LIST_CACHE_TTL, "5");
+        defaults.put(LIST_CACHE_ENTRIES, "256");
+        defaults.put(LOG_MODE, "sync");
+        defaults.put(LOG_QUEUE_SIZE, "8192");
+        defaults.put(LOG_FLUSH_INTERVAL, "1000");
+        defaults.put(LOG_FLUSH_BYTES, "65536");
+        defaults.put(LOG_OVERFLOW, "drop");
+        defaults.put(LOG_MAX_SIZE, "10485760");
+        defaults.put(LOG_ROTATE_INTERVAL, "0");
+        defaults.put(LOG_MMAP, "no");
+        defaults.put(TRANSFER_LOG, "none");
+        defaults.put(LOG_TIME_FORMAT, "iso8601");
+        defaults.put(UPLOAD_FSYNC, "close");
+        defaults.put(MAX_PARALLEL_STREAMS, "8");
+        defaults.put(MODE_Z_LEVEL, "6");
+        defaults.put(PASV_PORT_MIN, "0");
+        defaults.put(PASV_PORT_MAX, "0");
+        defaults.put(PASV_ADDRESS, "");
+        defaults.put(KEYSTORE, "KEYSTORE");
+        defaults.put(KEYSTORE_PASSWORD, "");
+        defaults.put(TLS_PROTOCOLS, "TLSv1.3,TLSv1.2");
+        defaults.put(TLS_CIPHERS, "TLS_AES_128_GCM_SHA256,TLS_AES_256_GCM_SHA384,TLS_CHACHA20_POLY1305_SHA256,TLS_ECDHE_ECDSA_WITH_AES_128_GCM_SHA256,TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256,TLS_ECDHE_ECDSA_WITH_AES_256_GCM_SHA384,TLS_ECDHE_RSA_WITH_AES_256_GCM_SHA384,TLS_ECDHE_ECDSA_WITH_CHACHA20_POLY1305_SHA256,TLS_ECDHE_RSA_WITH_CHACHA20_POLY1305_SHA256");
+        defaults.put(TLS_SESSION_CACHE_SIZE, "10000");
+        defaults.put(TLS_SESSION_TIMEOUT, "3600");
+        defaults.put(TLS_SESSION_TICKETS, "yes");
+        defaults.put(MAX_CONNECTIONS, "1000");
+        defaults.put(MAX_CONNECTIONS_PER_IP, "10");
+        defaults.put(CONNECTION_RATE, "100");
+        defaults.put(CONNECTION_BURST, "200");
+        defaults.put(BANDWIDTH_GLOBAL, "0");
+        defaults.put(BANDWIDTH_PER_IP, "0");
+        defaults.put(BANDWIDTH_PER_USER, "0");
+        defaults.put(BANDWIDTH_BURST, "262144");
+        defaults.put(CONFIG_RELOAD_INTERVAL, "5");
+        defaults.put(CREDENTIAL_CACHE_TTL, "300");
+        defaults.put(LOGIN_FAILURE_RATE, "10");
+        defaults.put(LOGIN_FAILURE_BURST, "5");
+        defaults.put(FILE_CACHE_SIZE, "0");
+        defaults.put(FILE_CACHE_MAX_FILE, "1048576");
+        defaults.put(TLS_MMAP_RETR, "yes");
+        defaults.put(TLS_MMAP_MAX_MAPPINGS, "256");
+        defaults.put(METRICS_PORT, "0");
+        defaults.put(METRICS_ADDRESS, "127.0.0.1");
     }
 
 
     public Config(String configFile) throws IOException {
+        path = configFile;
         configParts = new HashMap<String, String>();
 
-        BufferedReader br = new BufferedReader(new FileReader(configFile));
-        String line;
-        while ((line = br.readLine()) != null) {
-            parseLine(line);
+        try (BufferedReader br = new BufferedReader(new FileReader(configFile))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                parseLine(line);
+            }
         }
     }
 
@@ -48,6 +149,13 @@ public class Config {
         configParts.put(parts[0].trim().toLowerCase(), parts[1].trim());
     }
 
+    /**
+     * @return The file this config was read from.
+     */
+    public String getPath() {
+        return path;
+    }
+
     public String getString(String value) {
         String result = configParts.get(value);
         if (result == null) {
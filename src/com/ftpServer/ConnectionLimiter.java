@@ -0,0 +1,115 @@
+package com.cs472;
+
+import java.net.InetAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decides whether a new control connection is admitted, and counts open sessions per client address.
+ * Counting is lock-free: each address has an AtomicInteger that is only raised with compare-and-set below
+ * the limit, and is removed from the map once its last session ends.
+ */
+public class ConnectionLimiter {
+    /**
+     * Why a connection was refused.
+     */
+    public enum Rejection {
+        TOO_MANY_FROM_ADDRESS("421 Too many connections from your address."),
+        TOO_MANY_CONNECTIONS("421 Too many users, try again later."),
+        RATE_LIMITED("421 Too many new connections, try again later.");
+
+        private final String reply;
+
+        Rejection(String reply) {
+            this.reply = reply;
+        }
+
+        public String getReply() {
+            return reply;
+        }
+    }
+
+    private static final int REMOVED = -1; // Marks a counter that has been taken out of the map.
+
+    private final int maxPerAddress;
+    private final int maxConnections;
+    private final TokenBucket acceptRate;
+    private final AtomicInteger total = new AtomicInteger();
+    private final ConcurrentMap<InetAddress, AtomicInteger> perAddress = new ConcurrentHashMap<InetAddress, AtomicInteger>();
+
+    public ConnectionLimiter(Config config) {
+        maxPerAddress = config.getInt(Config.MAX_CONNECTIONS_PER_IP);
+        maxConnections = config.getInt(Config.MAX_CONNECTIONS);
+        int rate = config.getInt(Config.CONNECTION_RATE);
+        acceptRate = rate > 0 ? new TokenBucket(rate, config.getInt(Config.CONNECTION_BURST)) : null;
+    }
+
+    /**
+     * Counts a new connection if it is within the limits. An admitted connection must be released when it ends.
+     * @return Null if admitted, otherwise why the connection was refused.
+     */
+    public Rejection admit(InetAddress address) {
+        if (acceptRate != null && !acceptRate.tryAcquire(1)) {
+            return Rejection.RATE_LIMITED;
+        }
+        if (!increment(total, maxConnections)) {
+            return Rejection.TOO_MANY_CONNECTIONS;
+        }
+        while (true) {
+            AtomicInteger count = perAddress.get(address);
+            if (count == null) {
+                AtomicInteger created = new AtomicInteger();
+                count = perAddress.putIfAbsent(address, created);
+                if (count == null) {
+                    count = created;
+                }
+            }
+            int current = count.get();
+            if (current == REMOVED) {
+                perAddress.remove(address, count); // Being removed by release, retry with a new counter.
+                continue;
+            }
+            if (maxPerAddress > 0 && current >= maxPerAddress) {
+                total.decrementAndGet();
+                return Rejection.TOO_MANY_FROM_ADDRESS;
+            }
+            if (count.compareAndSet(current, current + 1)) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Ends the count of an admitted connection.
+     */
+    public void release(InetAddress address) {
+        total.decrementAndGet();
+        AtomicInteger count = perAddress.get(address);
+        if (count != null && count.decrementAndGet() == 0 && count.compareAndSet(0, REMOVED)) {
+            perAddress.remove(address, count);
+        }
+    }
+
+    /**
+     * @return The number of open sessions.
+     */
+    public int getConnections() {
+        return total.get();
+    }
+
+    /**
+     * Raises the counter by one unless it is at the limit, 0 means no limit.
+     */
+    private static boolean increment(AtomicInteger counter, int limit) {
+        while (true) {
+            int current = counter.get();
+            if (limit > 0 && current >= limit) {
+                return false;
+            }
+            if (counter.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+}
@@ -0,0 +1,301 @@
+package com.cs472;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * A non-blocking control connection owned by a ControlReactor event loop.
+ * Lines are parsed out of the read buffer as they arrive and run one at a time on the worker pool.
+ */
+class ControlConnection {
+    private static final int MAX_LINE = 4096;
+    private static final int MAX_QUEUED_LINES = 64;
+
+    private final SocketChannel channel;
+    private final ExecutorService workers;
+    private final Logger logger;
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(MAX_LINE);
+    private final Queue<String> lines = new ArrayDeque<String>();
+    private final Queue<ByteBuffer> writes = new ArrayDeque<ByteBuffer>();
+    private final ControlWriter writer = new ControlWriter();
+
+    private SessionHandler session;
+    private SelectionKey key;
+    private boolean busy = false; // Is a worker currently running commands for this connection.
+    private boolean opened = false;
+    private boolean closeAfterWrites = false;
+    private boolean discarding = false; // The rest of an over long line is being dropped.
+    private boolean quitting = false; // The session has ended and only replies are left to send.
+    private boolean closed = false;
+    private boolean finished = false;
+
+    ControlConnection(SocketChannel channel, ExecutorService workers, Logger logger) {
+        this.channel = channel;
+        this.workers = workers;
+        this.logger = logger;
+    }
+
+    void setSession(SessionHandler session) {
+        this.session = session;
+    }
+
+    /**
+     * @return The writer that sends replies to the client.
+     */
+    Writer getWriter() {
+        return writer;
+    }
+
+    /**
+     * Registers the channel for reads and sends the welcome message. Called from the event loop thread.
+     */
+    void register(Selector selector) throws IOException {
+        key = channel.register(selector, SelectionKey.OP_READ, this);
+        synchronized (this) {
+            busy = true;
+        }
+        workers.execute(drain);
+    }
+
+    /**
+     * Reads what is available and queues every complete line. Called from the event loop thread.
+     */
+    void onReadable() {
+        int read;
+        try {
+            read = channel.read(readBuffer);
+        } catch (IOException e) {
+            read = -1;
+        }
+        if (read < 0) {
+            close();
+            return;
+        }
+
+        boolean submit = false;
+        synchronized (this) {
+            readBuffer.flip();
+            int start = readBuffer.position();
+            for (int i = start; i < readBuffer.limit(); i++) {
+                if (readBuffer.get(i) == '\n') {
+                    if (discarding) {
+                        discarding = false;
+                    } else {
+                        int end = i;
+                        if (end > start && readBuffer.get(end - 1) == '\r') {
+                            end--;
+                        }
+                        lines.add(new String(readBuffer.array(), start, end - start, StandardCharsets.UTF_8));
+                    }
+                    start = i + 1;
+                }
+            }
+            readBuffer.position(discarding ? readBuffer.limit() : start);
+            readBuffer.compact();
+            if (!readBuffer.hasRemaining()) {
+                logger.log("Discarding control line over " + MAX_LINE + " bytes from " + channel.socket().getRemoteSocketAddress(), true);
+                discarding = true; // Up to the next line feed, so its tail is not run as a command.
+                readBuffer.clear();
+            }
+
+            // Stop reading from clients that send commands faster than they are run.
+            if (lines.size() >= MAX_QUEUED_LINES) {
+                key.interestOpsAnd(~SelectionKey.OP_READ);
+            }
+            if (!busy && !quitting && !lines.isEmpty()) {
+                busy = true;
+                submit = true;
+            }
+        }
+        if (submit) {
+            workers.execute(drain);
+        }
+    }
+
+    /**
+     * Writes queued replies. Called from the event loop thread.
+     */
+    void onWritable() {
+        boolean close;
+        synchronized (writes) {
+            try {
+                flushWrites();
+            } catch (IOException e) {
+                writes.clear();
+                closeAfterWrites = true;
+            }
+            close = closeAfterWrites && writes.isEmpty();
+        }
+        if (close) {
+            close();
+        }
+    }
+
+    /**
+     * Closes the connection and ends the session.
+     */
+    void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (busy) {
+                // Stop selecting a socket at EOF, and let the worker end the session when it finishes the current command.
+                key.cancel();
+                return;
+            }
+        }
+        finish();
+    }
+
+    private void finish() {
+        synchronized (this) {
+            if (finished) {
+                return;
+            }
+            finished = true;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.log("Unable to close control connection. " + e.getMessage(), true);
+        }
+        session.disconnected(); // Also releases connections that closed before the session opened.
+    }
+
+    /**
+     * Runs queued lines on a worker thread until none are left.
+     */
+    private final Runnable drain = new Runnable() {
+        @Override
+        public void run() {
+            if (!opened) {
+                opened = true;
+                session.open();
+            }
+            while (true) {
+                String line;
+                boolean more;
+                synchronized (ControlConnection.this) {
+                    line = closed ? null : lines.poll();
+                    more = !lines.isEmpty();
+                    if (line == null) {
+                        busy = false;
+                        if (closed) {
+                            break;
+                        }
+                        if (key.isValid() && (key.interestOps() & SelectionKey.OP_READ) == 0) {
+                            key.interestOpsOr(SelectionKey.OP_READ);
+                            key.selector().wakeup();
+                        }
+                        return;
+                    }
+                }
+                session.handleLine(line, more);
+                if (!session.isRunning()) {
+                    closeWhenWritten();
+                    return;
+                }
+            }
+            finish();
+        }
+    };
+
+    /**
+     * Closes the connection once all replies have been sent.
+     */
+    private void closeWhenWritten() {
+        boolean close;
+        synchronized (writes) {
+            closeAfterWrites = true;
+            close = writes.isEmpty();
+        }
+        synchronized (this) {
+            busy = false;
+            quitting = true;
+            lines.clear();
+        }
+        if (close) {
+            close();
+        }
+    }
+
+    /**
+     * Sends a reply, queueing whatever the socket buffer cannot take right away.
+     */
+    private void send(ByteBuffer buffer) throws IOException {
+        synchronized (writes) {
+            writes.add(buffer);
+            flushWrites();
+            if (!writes.isEmpty() && key.isValid()) {
+                key.interestOpsOr(SelectionKey.OP_WRITE);
+                key.selector().wakeup();
+            }
+        }
+    }
+
+    /**
+     * Writes queued buffers until the socket would block. Must hold the writes lock.
+     */
+    private void flushWrites() throws IOException {
+        while (!writes.isEmpty()) {
+            ByteBuffer head = writes.peek();
+            channel.write(head);
+            if (head.hasRemaining()) {
+                return;
+            }
+            writes.poll();
+        }
+        if (key.isValid()) {
+            key.interestOpsAnd(~SelectionKey.OP_WRITE);
+        }
+    }
+
+    /**
+     * Collects reply text and hands it to the connection on flush.
+     */
+    private class ControlWriter extends Writer {
+        private final StringBuilder pending = new StringBuilder();
+
+        @Override
+        public void write(char[] cbuf, int off, int len) {
+            synchronized (pending) {
+                pending.append(cbuf, off, len);
+            }
+        }
+
+        @Override
+        public void write(String str) {
+            synchronized (pending) {
+                pending.append(str);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            String text;
+            synchronized (pending) {
+                if (pending.length() == 0) {
+                    return;
+                }
+                text = pending.toString();
+                pending.setLength(0);
+            }
+            send(StandardCharsets.UTF_8.encode(text));
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+}
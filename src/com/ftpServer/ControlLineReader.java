@@ -0,0 +1,81 @@
+package com.cs472;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads control lines from a blocking socket into one reused buffer. Unlike BufferedReader it can tell whether
+ * another complete line has already arrived, so pipelined commands can be run as a batch.
+ */
+public class ControlLineReader {
+    private static final int MAX_LINE = 4096;
+
+    private final InputStream in;
+    private final byte[] buffer = new byte[MAX_LINE];
+    private int start = 0; // First unread byte.
+    private int end = 0; // One past the last buffered byte.
+
+    public ControlLineReader(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * Waits for the next line.
+     * @return The line without its line terminator, or null at the end of the stream.
+     */
+    public String readLine() throws IOException {
+        while (true) {
+            int newline = indexOfNewline();
+            if (newline >= 0) {
+                int lineEnd = newline > start && buffer[newline - 1] == '\r' ? newline - 1 : newline;
+                String line = new String(buffer, start, lineEnd - start, StandardCharsets.UTF_8);
+                start = newline + 1;
+                return line;
+            }
+            if (fill(Integer.MAX_VALUE) < 0) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * @return True if a complete line can be read without waiting. Only reads what has already arrived.
+     */
+    public boolean hasLine() throws IOException {
+        if (indexOfNewline() >= 0) {
+            return true;
+        }
+        int available = in.available();
+        return available > 0 && fill(available) > 0 && indexOfNewline() >= 0;
+    }
+
+    /**
+     * Reads up to max more bytes, blocking until at least one arrives.
+     * @return The number of bytes read, -1 at the end of the stream.
+     */
+    private int fill(int max) throws IOException {
+        if (start > 0) {
+            System.arraycopy(buffer, start, buffer, 0, end - start);
+            end -= start;
+            start = 0;
+        }
+        if (end == buffer.length) {
+            end = 0; // A line that does not fit is discarded.
+        }
+        int read = in.read(buffer, end, Math.min(max, buffer.length - end));
+        if (read > 0) {
+            end += read;
+        }
+        return read;
+    }
+
+    private int indexOfNewline() {
+        for (int i = start; i < end; i++) {
+            if (buffer[i] == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,145 @@
+package com.cs472;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Serves plain control connections from a few selector threads instead of a thread per session.
+ * Commands are parsed on the selector threads and run on a pool of worker threads.
+ */
+public class ControlReactor {
+    private final FTPServer server;
+    private final Logger logger;
+    private final ServerSocketChannel serverChannel;
+    private final EventLoop[] loops;
+    private final ExecutorService workers;
+    private int nextLoop = 0;
+
+    /**
+     * Binds the control port.
+     * @param eventLoops The number of selector threads.
+     * @param workers The executor used to run commands.
+     * @throws IOException If the port could not be bound.
+     */
+    public ControlReactor(FTPServer server, int port, int eventLoops, ExecutorService workers, Logger logger) throws IOException {
+        this.server = server;
+        this.logger = logger;
+        this.workers = workers;
+
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.configureBlocking(false);
+        serverChannel.bind(new InetSocketAddress(port));
+
+        loops = new EventLoop[Math.max(1, eventLoops)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop();
+        }
+        serverChannel.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+    }
+
+    /**
+     * Starts the selector threads.
+     */
+    public void start() {
+        for (int i = 0; i < loops.length; i++) {
+            Thread thread = new Thread(loops[i], "control-loop-" + i);
+            thread.start();
+        }
+        logger.log("Serving control connections with " + loops.length + " event loop(s).");
+    }
+
+    /**
+     * Accepts all pending connections and hands them to the event loops round robin.
+     */
+    private void accept() {
+        SocketChannel channel;
+        try {
+            while ((channel = serverChannel.accept()) != null) {
+                if (!server.allowConnection(channel.socket())) {
+                    continue; // Answered and closed by the server.
+                }
+                channel.configureBlocking(false);
+                ControlConnection connection = new ControlConnection(channel, workers, logger);
+                connection.setSession(server.createSession(channel.socket(), connection.getWriter()));
+                loops[nextLoop].register(connection);
+                nextLoop = (nextLoop + 1) % loops.length;
+            }
+        } catch (IOException e) {
+            logger.log("Error accepting control connection. " + e.getMessage(), true);
+        }
+    }
+
+    /**
+     * A selector and the thread that services it.
+     */
+    private class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<ControlConnection> pending = new ConcurrentLinkedQueue<ControlConnection>();
+
+        EventLoop() throws IOException {
+            selector = Selector.open();
+        }
+
+        /**
+         * Queues a connection to be registered by this loop's thread.
+         */
+        void register(ControlConnection connection) {
+            pending.add(connection);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (true) { // Run forever...
+                try {
+                    selector.select();
+                } catch (IOException e) {
+                    logger.log("Control selector failed. " + e.getMessage(), true);
+                    return;
+                }
+
+                ControlConnection connection;
+                while ((connection = pending.poll()) != null) {
+                    try {
+                        connection.register(selector);
+                    } catch (IOException e) {
+                        connection.close();
+                    }
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    ControlConnection attached = (ControlConnection) key.attachment();
+                    try {
+                        if (key.isWritable()) {
+                            attached.onWritable();
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            attached.onReadable();
+                        }
+                    } catch (CancelledKeyException e) {
+                        // Closed by a worker or the idle timeout while this loop was handling it.
+                    }
+                }
+            }
+        }
+    }
+}
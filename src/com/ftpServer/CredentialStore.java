@@ -0,0 +1,284 @@
+package com.cs472;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The users allowed to log in, read from the users file. Each line is "username,password", where the password
+ * is either a PBKDF2 hash made with hash, or plain text for old files. Verifying a hash is slow on purpose, so
+ * a successful login is remembered for a while as a keyed SHA-256 digest, and repeated logins skip PBKDF2.
+ * The file can be reloaded while sessions are running, the new users replace the old ones in one step.
+ * Failed logins are limited per client address, so guessing passwords, or making the server hash them, is slow.
+ */
+public class CredentialStore {
+    private static final String SCHEME = "pbkdf2_sha256";
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+    private static final int DEFAULT_ITERATIONS = 310000;
+    private static final int SALT_BYTES = 16;
+    private static final int HASH_BITS = 256;
+    private static final long IDLE_NANOS = 60 * 1000000000L; // Failure counts unused this long are forgotten.
+
+    private static final SecureRandom random = new SecureRandom();
+
+    /**
+     * A user's stored password, and the last successful verification of it.
+     */
+    private static class Entry {
+        final byte[] salt; // Null for a plain text password.
+        final int iterations;
+        final byte[] secret; // The PBKDF2 hash, or the plain text password.
+        volatile Verified verified;
+
+        Entry(byte[] salt, int iterations, byte[] secret) {
+            this.salt = salt;
+            this.iterations = iterations;
+            this.secret = secret;
+        }
+    }
+
+    private static class Verified {
+        final byte[] digest;
+        final long expiresAt; // System.nanoTime()
+
+        Verified(byte[] digest, long expiresAt) {
+            this.digest = digest;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final String path;
+    private final long cacheNanos;
+    private final byte[] cacheKey = new byte[32]; // Keeps cached digests useless outside this process.
+    private volatile Entry unknownUser; // Verified against for unknown users, so they take as long as known ones.
+    private volatile Map<String, Entry> users;
+    private final double failuresPerSecond;
+    private final long failureBurst;
+    private final ConcurrentMap<InetAddress, TokenBucket> failures = new ConcurrentHashMap<InetAddress, TokenBucket>();
+    private long modified; // Last modified time of the users file when it was last read.
+
+    /**
+     * Reads the users file.
+     * @throws IOException If the file cannot be read or has no valid users.
+     */
+    public CredentialStore(Config config) throws IOException {
+        this.path = config.getString(Config.USERNAME_FILE);
+        this.cacheNanos = config.getInt(Config.CREDENTIAL_CACHE_TTL) * 1000000000L;
+        random.nextBytes(cacheKey);
+        this.failuresPerSecond = Math.max(0, config.getInt(Config.LOGIN_FAILURE_RATE)) / 60.0;
+        this.failureBurst = config.getInt(Config.LOGIN_FAILURE_BURST);
+        this.modified = new File(path).lastModified();
+        this.users = read(path);
+        this.unknownUser = unknownUser(users);
+    }
+
+    /**
+     * Makes the entry unknown users are checked against, hashed like most of the users are, so checking it
+     * takes as long as checking a real user's password.
+     */
+    private static Entry unknownUser(Map<String, Entry> users) {
+        Entry hashed = null;
+        int count = 0;
+        for (Entry entry : users.values()) {
+            if (entry.salt != null) {
+                hashed = entry;
+                count++;
+            }
+        }
+        byte[] secret = new byte[HASH_BITS / 8];
+        random.nextBytes(secret);
+        if (count * 2 <= users.size()) {
+            return new Entry(null, 0, secret);
+        }
+        byte[] salt = new byte[SALT_BYTES];
+        random.nextBytes(salt);
+        return new Entry(salt, hashed.iterations, secret);
+    }
+
+    private static Map<String, Entry> read(String path) throws IOException {
+        Map<String, Entry> read = new HashMap<String, Entry>();
+        BufferedReader fileReader = new BufferedReader(new FileReader(path));
+        try {
+            String line;
+            while ((line = fileReader.readLine()) != null) {
+                String[] parts = line.split(",");
+                if (parts.length >= 2) {
+                    read.put(parts[0].trim(), parse(parts[1].trim()));
+                }
+            }
+        } finally {
+            fileReader.close();
+        }
+        if (read.isEmpty()) {
+            throw new IOException("At least one user must be specified in " + path);
+        }
+        return read;
+    }
+
+    private static Entry parse(String password) {
+        String[] parts = password.split("\\$");
+        if (parts.length == 4 && parts[0].equals(SCHEME)) {
+            try {
+                Base64.Decoder decoder = Base64.getDecoder();
+                return new Entry(decoder.decode(parts[2]), Integer.parseInt(parts[1]), decoder.decode(parts[3]));
+            } catch (IllegalArgumentException e) {
+                // Not a valid hash, treat it as a password that happens to contain '$'.
+            }
+        }
+        return new Entry(null, 0, password.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Rereads the users file if it changed. If it cannot be read the current users are kept.
+     * @return True if the users were replaced.
+     * @throws IOException If the file changed but could not be read.
+     */
+    public boolean reload() throws IOException {
+        long lastModified = new File(path).lastModified();
+        if (lastModified == modified) {
+            return false;
+        }
+        Map<String, Entry> read = read(path);
+        unknownUser = unknownUser(read);
+        users = read;
+        modified = lastModified; // Only once read, so a file caught half written is retried.
+        return true;
+    }
+
+    /**
+     * @return The file the users are read from.
+     */
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * @return The number of users.
+     */
+    public int size() {
+        return users.size();
+    }
+
+    /**
+     * Checks a password in constant time. Unknown users are checked against a dummy entry of the same kind as
+     * most stored passwords, so the time taken does not tell whether a user exists.
+     * @return True if the user exists and the password is theirs.
+     */
+    public boolean verify(String username, String password) {
+        Entry entry = username == null ? null : users.get(username);
+        if (password == null) {
+            password = "";
+        }
+        if (entry == null) {
+            check(unknownUser, password);
+            return false;
+        }
+
+        byte[] digest = digest(password);
+        Verified verified = entry.verified;
+        if (verified != null && System.nanoTime() - verified.expiresAt < 0 && MessageDigest.isEqual(verified.digest, digest)) {
+            return true;
+        }
+        if (!check(entry, password)) {
+            return false;
+        }
+        if (cacheNanos > 0) {
+            entry.verified = new Verified(digest, System.nanoTime() + cacheNanos);
+        }
+        return true;
+    }
+
+    /**
+     * @return False if the address has failed to log in too often recently, its passwords should not be checked.
+     */
+    public boolean allowAttempt(InetAddress address) {
+        TokenBucket bucket = failures.get(address);
+        return bucket == null || bucket.tryAcquire(0);
+    }
+
+    /**
+     * Counts a failed login from an address against its limit.
+     */
+    public void recordFailure(InetAddress address) {
+        if (failuresPerSecond == 0) {
+            return;
+        }
+        TokenBucket bucket = failures.get(address);
+        if (bucket == null) {
+            TokenBucket created = new TokenBucket(failuresPerSecond, failureBurst);
+            bucket = failures.putIfAbsent(address, created);
+            if (bucket == null) {
+                bucket = created;
+            }
+        }
+        bucket.reserve(1); // Goes into debt past the burst, allowAttempt then refuses until it is paid off.
+    }
+
+    /**
+     * Forgets the failures of addresses that have not failed for a while.
+     */
+    public void sweep() {
+        Iterator<TokenBucket> buckets = failures.values().iterator();
+        while (buckets.hasNext()) {
+            if (buckets.next().isIdle(IDLE_NANOS)) {
+                buckets.remove();
+            }
+        }
+    }
+
+    private static boolean check(Entry entry, String password) {
+        if (entry.salt == null) {
+            return MessageDigest.isEqual(entry.secret, password.getBytes(StandardCharsets.UTF_8));
+        }
+        return MessageDigest.isEqual(entry.secret, pbkdf2(password.toCharArray(), entry.salt, entry.iterations));
+    }
+
+    private byte[] digest(String password) {
+        try {
+            MessageDigest sha = MessageDigest.getInstance("SHA-256");
+            sha.update(cacheKey);
+            return sha.digest(password.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available.", e);
+        }
+    }
+
+    private static byte[] pbkdf2(char[] password, byte[] salt, int iterations) {
+        try {
+            PBEKeySpec spec = new PBEKeySpec(password, salt, iterations, HASH_BITS);
+            try {
+                return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+            } finally {
+                spec.clearPassword();
+            }
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(ALGORITHM + " is not available.", e);
+        }
+    }
+
+    /**
+     * Hashes a password with a new random salt, in the form stored in the users file.
+     */
+    public static String hash(char[] password) {
+        byte[] salt = new byte[SALT_BYTES];
+        random.nextBytes(salt);
+        Base64.Encoder encoder = Base64.getEncoder();
+        return SCHEME + "$" + DEFAULT_ITERATIONS + "$" + encoder.encodeToString(salt) + "$" +
+                encoder.encodeToString(pbkdf2(password, salt, DEFAULT_ITERATIONS));
+    }
+}
@@ -0,0 +1,298 @@
+package com.cs472;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Produces directory listings (LIST, NLST and MLSD) inside the JVM and caches them per directory.
+ * A cached listing is reused until the directory's modification time changes or it gets older than the ttl.
+ * Listings are streamed entry by entry, so huge directories are sent with bounded memory.
+ */
+public class DirectoryLister {
+    /**
+     * The listing formats that can be produced.
+     */
+    public enum Format {LIST, NLST, MLSD}
+
+    // Listings bigger than this are streamed but never cached.
+    private static final int MAX_CACHED_LISTING = 256 * 1024;
+    private static final long SIX_MONTHS_MILLIS = 1000L * 60 * 60 * 24 * 182;
+    private static final DateTimeFormatter RECENT = DateTimeFormatter.ofPattern("MMM dd HH:mm", Locale.US);
+    private static final DateTimeFormatter OLD = DateTimeFormatter.ofPattern("MMM dd  yyyy", Locale.US);
+
+    private final long ttlMillis;
+    private final Map<String, CachedListing> cache;
+
+    public DirectoryLister(Config config) {
+        this.ttlMillis = config.getInt(Config.LIST_CACHE_TTL) * 1000L;
+        final int maxEntries = config.getInt(Config.LIST_CACHE_ENTRIES);
+        this.cache = new LinkedHashMap<String, CachedListing>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedListing> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Writes the listing of directory to out, from the cache when it is still valid.
+     * @return The number of bytes written.
+     */
+    public long list(Path directory, Format format, OutputStream out) throws IOException {
+        String key = format + ":" + directory.toAbsolutePath().normalize().toString();
+        long modified = Files.getLastModifiedTime(directory).toMillis();
+        long now = System.currentTimeMillis();
+
+        if (ttlMillis > 0) {
+            CachedListing cached;
+            synchronized (cache) {
+                cached = cache.get(key);
+            }
+            if (cached != null && cached.modified == modified && now - cached.created < ttlMillis) {
+                out.write(cached.listing);
+                return cached.listing.length;
+            }
+        }
+
+        CaptureOutputStream capture = new CaptureOutputStream(out, ttlMillis > 0 ? MAX_CACHED_LISTING : 0);
+        Writer writer = new OutputStreamWriter(capture, StandardCharsets.UTF_8);
+        writeListing(directory, format, writer, now);
+        writer.flush();
+
+        byte[] listing = capture.captured();
+        if (listing != null) {
+            synchronized (cache) {
+                cache.put(key, new CachedListing(listing, modified, now));
+            }
+        }
+        return capture.count();
+    }
+
+    /**
+     * Streams one line per directory entry, reading each entry's attributes in a single call.
+     */
+    private void writeListing(Path directory, Format format, Writer writer, long now) throws IOException {
+        StringBuilder line = new StringBuilder(128);
+        if (format == Format.MLSD) {
+            formatFacts(readAttributes(directory), "cdir", line);
+            line.append(' ').append(directory.toAbsolutePath().toString()).append("\r\n");
+            writer.append(line);
+        }
+
+        DirectoryStream<Path> entries = Files.newDirectoryStream(directory);
+        try {
+            for (Path entry : entries) {
+                line.setLength(0);
+                String name = entry.getFileName().toString();
+                if (format == Format.NLST) {
+                    writer.append(line.append(name).append("\r\n"));
+                    continue;
+                }
+
+                BasicFileAttributes attributes;
+                try {
+                    attributes = readAttributes(entry);
+                } catch (IOException e) {
+                    continue; // Removed while listing.
+                }
+                if (format == Format.MLSD) {
+                    formatFacts(attributes, null, line);
+                    line.append(' ').append(name).append("\r\n");
+                } else {
+                    formatEntry(name, attributes, now, line);
+                }
+                writer.append(line);
+            }
+        } finally {
+            entries.close();
+        }
+    }
+
+    /**
+     * Appends the MLST facts for a single path, as sent on the control connection.
+     */
+    public static void appendFacts(Path path, StringBuilder line) throws IOException {
+        formatFacts(readAttributes(path), null, line);
+    }
+
+    /**
+     * Reads posix attributes where the file system supports them, and basic attributes otherwise.
+     */
+    static BasicFileAttributes readAttributes(Path path) throws IOException {
+        try {
+            return Files.readAttributes(path, PosixFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch (UnsupportedOperationException e) {
+            return Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        }
+    }
+
+    private static void formatEntry(String name, BasicFileAttributes attributes, long now, StringBuilder line) {
+        if (attributes.isDirectory()) {
+            line.append('d');
+        } else if (attributes.isSymbolicLink()) {
+            line.append('l');
+        } else {
+            line.append('-');
+        }
+
+        String owner = "ftp";
+        String group = "ftp";
+        if (attributes instanceof PosixFileAttributes) {
+            PosixFileAttributes posix = (PosixFileAttributes) attributes;
+            appendPermissions(posix.permissions(), line);
+            owner = posix.owner().getName();
+            group = posix.group().getName();
+        } else {
+            line.append(attributes.isDirectory() ? "rwxr-xr-x" : "rw-r--r--");
+        }
+
+        long modified = attributes.lastModifiedTime().toMillis();
+        ZonedDateTime time = ZonedDateTime.ofInstant(Instant.ofEpochMilli(modified), ZoneId.systemDefault());
+        DateTimeFormatter format = Math.abs(now - modified) < SIX_MONTHS_MILLIS ? RECENT : OLD;
+
+        line.append(" 1 ").append(owner).append(' ').append(group).append(' ');
+        String size = Long.toString(attributes.size());
+        for (int i = size.length(); i < 12; i++) {
+            line.append(' ');
+        }
+        line.append(size).append(' ');
+        format.formatTo(time, line);
+        line.append(' ').append(name).append("\r\n");
+    }
+
+    /**
+     * Appends the type, size, modify and perm facts of an entry followed by a ';'.
+     * @param type Overrides the type fact, used for the listed directory itself.
+     */
+    private static void formatFacts(BasicFileAttributes attributes, String type, StringBuilder line) {
+        boolean directory = attributes.isDirectory();
+        line.append("type=").append(type != null ? type : directory ? "dir" : "file").append(';');
+        if (!directory) {
+            line.append("size=").append(attributes.size()).append(';');
+        }
+        line.append("modify=");
+        LogClock.appendDateTime(Math.floorDiv(attributes.lastModifiedTime().toMillis(), 1000L), line, false);
+        line.append(';');
+
+        boolean read = true;
+        boolean write = true;
+        boolean execute = true;
+        if (attributes instanceof PosixFileAttributes) {
+            Set<PosixFilePermission> permissions = ((PosixFileAttributes) attributes).permissions();
+            read = permissions.contains(PosixFilePermission.OWNER_READ);
+            write = permissions.contains(PosixFilePermission.OWNER_WRITE);
+            execute = permissions.contains(PosixFilePermission.OWNER_EXECUTE);
+        }
+        line.append("perm=");
+        if (directory) {
+            line.append(execute ? "e" : "").append(read ? "l" : "").append(write ? "cmpdf" : "");
+        } else {
+            line.append(read ? "r" : "").append(write ? "adfw" : "");
+        }
+        line.append(';');
+    }
+
+    private static void appendPermissions(Set<PosixFilePermission> permissions, StringBuilder line) {
+        line.append(permissions.contains(PosixFilePermission.OWNER_READ) ? 'r' : '-');
+        line.append(permissions.contains(PosixFilePermission.OWNER_WRITE) ? 'w' : '-');
+        line.append(permissions.contains(PosixFilePermission.OWNER_EXECUTE) ? 'x' : '-');
+        line.append(permissions.contains(PosixFilePermission.GROUP_READ) ? 'r' : '-');
+        line.append(permissions.contains(PosixFilePermission.GROUP_WRITE) ? 'w' : '-');
+        line.append(permissions.contains(PosixFilePermission.GROUP_EXECUTE) ? 'x' : '-');
+        line.append(permissions.contains(PosixFilePermission.OTHERS_READ) ? 'r' : '-');
+        line.append(permissions.contains(PosixFilePermission.OTHERS_WRITE) ? 'w' : '-');
+        line.append(permissions.contains(PosixFilePermission.OTHERS_EXECUTE) ? 'x' : '-');
+    }
+
+    /**
+     * A listing kept in the cache.
+     */
+    private static class CachedListing {
+        final byte[] listing;
+        final long modified;
+        final long created;
+
+        CachedListing(byte[] listing, long modified, long created) {
+            this.listing = listing;
+            this.modified = modified;
+            this.created = created;
+        }
+    }
+
+    /**
+     * Passes bytes through to the data connection while keeping a copy, up to a limit, for the cache.
+     */
+    private static class CaptureOutputStream extends FilterOutputStream {
+        private final int limit;
+        private ByteArrayOutputStream copy;
+        private long count = 0;
+
+        CaptureOutputStream(OutputStream out, int limit) {
+            super(out);
+            this.limit = limit;
+            this.copy = limit > 0 ? new ByteArrayOutputStream() : null;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            if (keep(1)) {
+                copy.write(b);
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            if (keep(len)) {
+                copy.write(b, off, len);
+            }
+        }
+
+        /**
+         * Counts bytes written.
+         * @return True if they should also be copied.
+         */
+        private boolean keep(int len) {
+            count += len;
+            if (copy != null && copy.size() + len > limit) {
+                copy = null; // Too big to cache.
+            }
+            return copy != null;
+        }
+
+        /**
+         * @return The number of bytes written.
+         */
+        long count() {
+            return count;
+        }
+
+        /**
+         * @return Everything written, or null if it went over the limit.
+         */
+        byte[] captured() {
+            return copy == null ? null : copy.toByteArray();
+        }
+    }
+}
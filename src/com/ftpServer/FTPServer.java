@@ -1,29 +1,54 @@
 package com.cs472;
 
-import javax.net.ssl.SSLServerSocket;
-import javax.net.ssl.SSLServerSocketFactory;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
 import javax.net.ssl.SSLSocket;
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.UnknownHostException;
-import java.util.HashMap;
+import java.nio.charset.StandardCharsets;
+import java.util.EnumMap;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 public class FTPServer {
+    private static final int REJECT_TIMEOUT = 5000; // How long to try telling a refused client why.
+    private static final long ACCEPT_ERROR_DELAY = 100;
+    private static final long CACHE_STATS_INTERVAL = 60; // Seconds between file cache statistics in the log.
+
     private Logger logger;
     private String ip;
     private int port;
     private int sslport;
     private Config config;
+    private ServerExecutors executors;
+    private DirectoryLister directoryLister;
+    private TransferLog transferLog;
+    private PassivePorts passivePorts;
+    private TlsContext tlsContext;
 
-    // Maps a username to a password
-    private Map<String, String> validUsers = new HashMap<String, String>();
-    private Map<String, Integer> activeUsers = new HashMap<String, Integer>();
+    private CredentialStore credentials;
+    private ConnectionLimiter connectionLimiter;
+    private BandwidthLimiter bandwidthLimiter;
+    private FileCache fileCache;
+    private MappedFiles mappedFiles;
+    private long configModified; // Last modified time of the config file when it was last read.
+
+    private final Metrics metrics = new Metrics();
+    private final Metrics.Counter accepted = metrics.counter("ftp_connections_accepted_total",
+            "Control connections admitted.");
+    private final Map<ConnectionLimiter.Rejection, Metrics.Counter> rejected =
+            new EnumMap<ConnectionLimiter.Rejection, Metrics.Counter>(ConnectionLimiter.Rejection.class);
+    private final SessionHandler.SessionMetrics sessionMetrics = new SessionHandler.SessionMetrics(metrics);
 
     /**
      * Creates anew ftp server at localhost:port, and logs things to outputFile
@@ -46,7 +71,150 @@ public class FTPServer {
             this.logger = new Logger();
             logger.log("Could not open logfile for writing, defaulting to standard out.", true);
         }
+        this.executors = new ServerExecutors(config, logger);
+        this.directoryLister = new DirectoryLister(config);
+        try {
+            this.transferLog = new TransferLog(config);
+        } catch (IOException e) {
+            this.transferLog = new TransferLog();
+            logger.log("Could not open the transfer log, transfers will not be recorded. " + e.getMessage(), true);
+        }
+        this.tlsContext = new TlsContext(config, logger, metrics);
+        this.connectionLimiter = new ConnectionLimiter(config);
+        this.bandwidthLimiter = new BandwidthLimiter(config);
+        this.fileCache = new FileCache(config);
+        if (config.getBoolean(Config.TLS_MMAP_RETR)) {
+            this.mappedFiles = new MappedFiles(config.getInt(Config.TLS_MMAP_MAX_MAPPINGS));
+        }
+        this.configModified = new File(config.getPath()).lastModified();
+        try {
+            this.passivePorts = new PassivePorts(config, logger);
+        } catch (IOException e) {
+            logger.log("Could not start accepting passive data connections. " + e.getMessage(), true);
+            System.exit(1);
+        }
         readUsers();
+        registerMetrics();
+    }
+
+    /**
+     * Registers the gauges that read the state of the server's parts when metrics are written.
+     */
+    private void registerMetrics() {
+        for (ConnectionLimiter.Rejection rejection : ConnectionLimiter.Rejection.values()) {
+            rejected.put(rejection, metrics.counter("ftp_connections_rejected_total",
+                    "reason=\"" + rejection.name().toLowerCase() + "\"", "Control connections refused by the limits."));
+        }
+        metrics.gauge("ftp_sessions", "Open control connections.", new Metrics.Source() {
+            @Override
+            public long get() {
+                return connectionLimiter.getConnections();
+            }
+        });
+        metrics.gauge("ftp_log_queue_depth", "Log messages waiting to be written.", new Metrics.Source() {
+            @Override
+            public long get() {
+                return logger.getQueueDepth();
+            }
+        });
+        metrics.counter("ftp_log_dropped_total", "Log messages dropped because the queue was full.", new Metrics.Source() {
+            @Override
+            public long get() {
+                return logger.getDroppedCount();
+            }
+        });
+        metrics.counter("ftp_tls_handshakes_total", "Completed TLS handshakes.", new Metrics.Source() {
+            @Override
+            public long get() {
+                return tlsContext.getHandshakes();
+            }
+        });
+        metrics.counter("ftp_tls_resumed_handshakes_total", "TLS handshakes that resumed a session.", new Metrics.Source() {
+            @Override
+            public long get() {
+                return tlsContext.getResumedHandshakes();
+            }
+        });
+        metrics.counter("ftp_tls_failed_handshakes_total", "Failed TLS handshakes.", new Metrics.Source() {
+            @Override
+            public long get() {
+                return tlsContext.getFailedHandshakes();
+            }
+        });
+        if (fileCache.isEnabled()) {
+            metrics.counter("ftp_file_cache_hits_total", "Downloads sent from the file cache.", new Metrics.Source() {
+                @Override
+                public long get() {
+                    return fileCache.getHits();
+                }
+            });
+            metrics.counter("ftp_file_cache_misses_total", "Cacheable downloads not found in the file cache.", new Metrics.Source() {
+                @Override
+                public long get() {
+                    return fileCache.getMisses();
+                }
+            });
+            metrics.ratio("ftp_file_cache_hit_ratio", "Fraction of cacheable downloads sent from the file cache.", new Metrics.Fraction() {
+                @Override
+                public double get() {
+                    return fileCache.getHitRatio();
+                }
+            });
+            metrics.counter("ftp_file_cache_saved_bytes_total", "Bytes sent from the file cache instead of read from disk.", new Metrics.Source() {
+                @Override
+                public long get() {
+                    return fileCache.getBytesSaved();
+                }
+            });
+            metrics.gauge("ftp_file_cache_used_bytes", "File cache memory holding files.", new Metrics.Source() {
+                @Override
+                public long get() {
+                    return fileCache.getUsedBytes();
+                }
+            });
+        }
+        if (mappedFiles != null) {
+            metrics.gauge("ftp_mapped_files", "File mappings held for TLS downloads.", new Metrics.Source() {
+                @Override
+                public long get() {
+                    return mappedFiles.size();
+                }
+            });
+        }
+    }
+
+    /**
+     * Serves the metrics over HTTP if a metrics port is configured. The endpoint has no authentication,
+     * so it listens on the loopback address unless configured otherwise.
+     */
+    private void startMetricsEndpoint() {
+        int metricsPort = config.getInt(Config.METRICS_PORT);
+        if (metricsPort <= 0) {
+            return;
+        }
+        try {
+            HttpServer server = HttpServer.create(
+                    new InetSocketAddress(config.getString(Config.METRICS_ADDRESS), metricsPort), 0);
+            server.createContext("/metrics", new HttpHandler() {
+                @Override
+                public void handle(HttpExchange exchange) throws IOException {
+                    byte[] body = metrics.toPrometheusText().getBytes(StandardCharsets.UTF_8);
+                    exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                    exchange.sendResponseHeaders(200, body.length);
+                    OutputStream out = exchange.getResponseBody();
+                    try {
+                        out.write(body);
+                    } finally {
+                        out.close();
+                    }
+                }
+            });
+            server.setExecutor(executors.tasks());
+            server.start();
+            logger.log("Serving metrics on " + config.getString(Config.METRICS_ADDRESS) + ":" + metricsPort);
+        } catch (IOException e) {
+            logger.log("Could not serve metrics on port " + metricsPort + ". " + e.getMessage(), true);
+        }
     }
 
     private void readUsers() {
@@ -61,20 +229,9 @@ public class FTPServer {
         }
 
         try {
-            BufferedReader fileReader = new BufferedReader(new FileReader(userFilePath));
-            String line;
-            while ((line = fileReader.readLine()) != null) {
-                String[] parts = line.split(",");
-                if (parts.length >= 2) {
-                    validUsers.put(parts[0].trim(), parts[1].trim());
-                }
-            }
-            if (validUsers.size() == 0) {
-                logger.log("At least one user must be specified in " + userFilePath);
-                System.exit(1);
-            }
+            credentials = new CredentialStore(config);
         }catch (IOException e) {
-            logger.log("Could not read " + userFilePath);
+            logger.log("Could not read " + userFilePath + ". " + e.getMessage());
             System.exit(1);
         }
     }
@@ -84,10 +241,213 @@ public class FTPServer {
      */
     public void start() {
         logger.log("Opening connection on " + ip + ":" + port);
-        new Thread(ConnectionHandler).start();
+        passivePorts.start();
+        startMetricsEndpoint();
+        int reloadInterval = config.getInt(Config.CONFIG_RELOAD_INTERVAL);
+        if (reloadInterval > 0) {
+            executors.scheduler().scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    reloadConfig();
+                    reloadUsers();
+                    bandwidthLimiter.sweep();
+                    credentials.sweep();
+                }
+            }, reloadInterval, reloadInterval, TimeUnit.SECONDS);
+        }
+        if (fileCache.isEnabled()) {
+            logger.log("Caching files up to " + config.getInt(Config.FILE_CACHE_MAX_FILE) + " bytes in " +
+                    fileCache.getCapacity() + " bytes of memory.");
+            executors.scheduler().scheduleWithFixedDelay(new Runnable() {
+                private long lookups = 0;
+
+                @Override
+                public void run() {
+                    long total = fileCache.getHits() + fileCache.getMisses();
+                    if (total != lookups) {
+                        lookups = total;
+                        logger.log(String.format("File cache: %d files in %d bytes, %.1f%% hit ratio, %d bytes saved.",
+                                fileCache.size(), fileCache.getUsedBytes(), fileCache.getHitRatio() * 100,
+                                fileCache.getBytesSaved()));
+                    }
+                }
+            }, CACHE_STATS_INTERVAL, CACHE_STATS_INTERVAL, TimeUnit.SECONDS);
+        }
+        if (config.getString(Config.CONTROL_MODE).equalsIgnoreCase("nio")) {
+            try {
+                ControlReactor reactor = new ControlReactor(this, port, config.getInt(Config.CONTROL_EVENT_LOOPS),
+                        executors.newWorkerPool("control-worker", config.getInt(Config.CONTROL_WORKER_THREADS)), logger);
+                reactor.start();
+            } catch (IOException e) {
+                logger.log("Could not start nio control channel on port " + port + ". " + e.getMessage(), true);
+                return;
+            }
+        } else {
+            new Thread(ConnectionHandler).start();
+        }
+        // SSL control connections always use a thread per session.
         new Thread(SSLConnectionHandler).start();
     }
 
+    /**
+     * Rereads the config file if it changed and applies the new bandwidth limits. Other settings need a restart.
+     */
+    private void reloadConfig() {
+        long modified = new File(config.getPath()).lastModified();
+        if (modified == configModified) {
+            return;
+        }
+        configModified = modified;
+        try {
+            Config reloaded = new Config(config.getPath());
+            if (bandwidthLimiter.reload(reloaded)) {
+                logger.log("Bandwidth limits changed to " + reloaded.getInt(Config.BANDWIDTH_GLOBAL) + " global, " +
+                        reloaded.getInt(Config.BANDWIDTH_PER_IP) + " per address and " +
+                        reloaded.getInt(Config.BANDWIDTH_PER_USER) + " per user bytes per second.");
+            }
+        } catch (IOException e) {
+            logger.log("Could not reload " + config.getPath() + ". " + e.getMessage(), true);
+        } catch (IllegalArgumentException e) {
+            logger.log("Keeping the old bandwidth limits. " + e.getMessage(), true);
+        }
+    }
+
+    /**
+     * Rereads the users file if it changed. Sessions already logged in are not affected.
+     */
+    private void reloadUsers() {
+        try {
+            if (credentials.reload()) {
+                logger.log("Reloaded " + credentials.size() + " users from " + credentials.getPath() + ".");
+            }
+        } catch (IOException e) {
+            logger.log("Keeping the old users, could not reload " + credentials.getPath() + ". " + e.getMessage(), true);
+        }
+    }
+
+    /**
+     * Checks a newly accepted socket against the connection limits. A refused socket is answered with a 421 reply
+     * and closed on the task executor, so a slow client cannot hold up the accepting thread.
+     * @return True if a session should be started, it must release the connection when it ends.
+     */
+    boolean allowConnection(final Socket socket) {
+        final ConnectionLimiter.Rejection rejection = connectionLimiter.admit(socket.getInetAddress());
+        if (rejection == null) {
+            accepted.increment();
+            return true;
+        }
+        rejected.get(rejection).increment();
+        logger.log("Refused connection from " + socket.getRemoteSocketAddress() + ": " + rejection.getReply(), true);
+        executors.tasks().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    socket.setSoTimeout(REJECT_TIMEOUT);
+                    Writer writer = new OutputStreamWriter(socket.getOutputStream());
+                    writer.write(rejection.getReply() + "\n");
+                    writer.flush();
+                } catch (IOException e) {
+                    // The client is gone, nothing to tell it.
+                } finally {
+                    try {
+                        socket.close();
+                    } catch (IOException e) {
+                        logger.log("Unable to close refused connection. " + e.getMessage(), true);
+                    }
+                }
+            }
+        });
+        return false;
+    }
+
+    /**
+     * Accepts control connections on a blocking server socket until the server stops.
+     */
+    private void acceptLoop(ServerSocket serverSocket) {
+        while (true) { // Run forever...
+            Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                // Usually out of file descriptors, back off briefly instead of spinning.
+                logger.log("Error accepting connection. " + e.getMessage(), true);
+                try {
+                    Thread.sleep(ACCEPT_ERROR_DELAY);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+                continue;
+            }
+            if (!allowConnection(socket)) {
+                continue;
+            }
+            executors.sessions().execute(new SessionHandler(socket, FTPServer.this));
+        }
+    }
+
+    /**
+     * Creates a session for a control connection managed by the nio control mode.
+     * @param out Where replies to the client are written.
+     */
+    SessionHandler createSession(Socket socket, Writer out) {
+        return new SessionHandler(socket, this, out);
+    }
+
+    Logger getLogger() {
+        return logger;
+    }
+
+    Config getConfig() {
+        return config;
+    }
+
+    ServerExecutors getExecutors() {
+        return executors;
+    }
+
+    DirectoryLister getDirectoryLister() {
+        return directoryLister;
+    }
+
+    PassivePorts getPassivePorts() {
+        return passivePorts;
+    }
+
+    TlsContext getTlsContext() {
+        return tlsContext;
+    }
+
+    TransferLog getTransferLog() {
+        return transferLog;
+    }
+
+    CredentialStore getCredentials() {
+        return credentials;
+    }
+
+    ConnectionLimiter getConnectionLimiter() {
+        return connectionLimiter;
+    }
+
+    BandwidthLimiter getBandwidthLimiter() {
+        return bandwidthLimiter;
+    }
+
+    FileCache getFileCache() {
+        return fileCache;
+    }
+
+    SessionHandler.SessionMetrics getSessionMetrics() {
+        return sessionMetrics;
+    }
+
+    /**
+     * @return The shared file mappings, or null if TLS downloads are not sent from mapped files.
+     */
+    MappedFiles getMappedFiles() {
+        return mappedFiles;
+    }
+
     /**
      * Used by background thread to listen for new incoming connections
      */
@@ -95,21 +455,7 @@ public class FTPServer {
         @Override
         public void run() {
             try {
-                ServerSocket incomingConnections = new ServerSocket(port);
-                while (true) { // Run forever...
-                    Socket socket = incomingConnections.accept();
-                    String ip = socket.getRemoteSocketAddress().toString();
-                    Integer usersWithIP = activeUsers.get(ip);
-                    if (usersWithIP == null) {
-                        activeUsers.put(ip, 0);
-                        usersWithIP = 0;
-                    }
-                    if (usersWithIP > 10) {
-                        return;
-                    }
-
-                    new Thread(new SessionHandler(socket, logger, validUsers, config, activeUsers)).start();
-                }
+                acceptLoop(new ServerSocket(port));
             }catch (IOException e) {
                 e.printStackTrace();
             }
@@ -123,22 +469,7 @@ public class FTPServer {
         @Override
         public void run() {
             try {
-                SSLServerSocketFactory factory=(SSLServerSocketFactory) SSLServerSocketFactory.getDefault();
-                SSLServerSocket sslserversocket=(SSLServerSocket) factory.createServerSocket(sslport);
-                while (true) { // Run forever...
-                    Socket socket = sslserversocket.accept();
-                    String ip = socket.getRemoteSocketAddress().toString();
-                    Integer usersWithIP = activeUsers.get(ip);
-                    if (usersWithIP == null) {
-                        activeUsers.put(ip, 0);
-                        usersWithIP = 0;
-                    }
-                    if (usersWithIP > 10) {
-                        return;
-                    }
-
-                    new Thread(new SessionHandler(socket, logger, validUsers, config, activeUsers)).start();
-                }
+                acceptLoop(tlsContext.createServerSocket(sslport));
             }catch (IOException e) {
                 e.printStackTrace();
             }
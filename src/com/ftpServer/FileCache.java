@@ -0,0 +1,318 @@
+package com.cs472;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the contents of small, often downloaded files in off-heap memory, so RETR can send them without reading
+ * the disk. Memory is a fixed number of direct buffer slabs, split into power of two blocks by a buddy allocator,
+ * so the cache never uses more than its configured size and does not leave garbage for the collector. Files are
+ * evicted least recently used first. An entry is dropped when its file's size or modification time changes.
+ * Entries are pinned while they are being sent, an evicted entry's block is only reused once it is released.
+ */
+public class FileCache {
+    private static final int UNIT = 4 * 1024; // Smallest block.
+    private static final int MIN_SLAB = 64 * 1024;
+
+    /**
+     * A cached file. Must be released once sent.
+     */
+    public static class Entry {
+        private final String path;
+        private final long length;
+        private final long modified;
+        private final int block;
+        private final int order;
+        private final ByteBuffer data;
+        private int pins = 0; // Guarded by the cache.
+        private boolean evicted = false;
+
+        private Entry(String path, long length, long modified, int block, int order, ByteBuffer data) {
+            this.path = path;
+            this.length = length;
+            this.modified = modified;
+            this.block = block;
+            this.order = order;
+            this.data = data;
+        }
+
+        /**
+         * @return The file contents, as a new read only buffer positioned at the start.
+         */
+        public ByteBuffer getData() {
+            return data.asReadOnlyBuffer();
+        }
+    }
+
+    private final long maxFileSize;
+    private final int slabSize;
+    private final int maxOrder; // Blocks are UNIT << order bytes, a whole slab is maxOrder.
+    private final ByteBuffer[] slabs;
+    private int slabCount = 0;
+    private final byte[] freeOrder; // For each unit, order + 1 if a free block starts there, otherwise 0.
+    private final List<Set<Integer>> freeBlocks = new ArrayList<Set<Integer>>(); // Free block start units by order.
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private long usedBytes = 0;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong bytesSaved = new AtomicLong();
+
+    public FileCache(Config config) {
+        long size = Math.max(0, config.getInt(Config.FILE_CACHE_SIZE));
+        long maxFile = Math.max(0, Math.min(size, config.getInt(Config.FILE_CACHE_MAX_FILE)));
+        int slab = MIN_SLAB;
+        while (slab < maxFile) {
+            slab <<= 1;
+        }
+        while (slab > size && slab > UNIT) { // Never use more memory than configured, even for one slab.
+            slab >>= 1;
+        }
+        if (slab > size) {
+            maxFile = 0; // Too small to hold even one block.
+        }
+        this.slabSize = slab;
+        this.maxFileSize = Math.min(maxFile, slab);
+        this.maxOrder = Integer.numberOfTrailingZeros(slab / UNIT);
+        this.slabs = new ByteBuffer[maxFileSize == 0 ? 0 : (int) (size / slab)];
+        this.freeOrder = new byte[slabs.length * (slab / UNIT)];
+        for (int order = 0; order <= maxOrder; order++) {
+            freeBlocks.add(new LinkedHashSet<Integer>());
+        }
+    }
+
+    /**
+     * @return True if files are cached at all.
+     */
+    public boolean isEnabled() {
+        return slabs.length > 0;
+    }
+
+    /**
+     * Finds a file in the cache, loading it on a miss if it is small enough. The entry is pinned until release.
+     * @return The cached file, or null if it is not cached and should be read from disk.
+     */
+    public Entry acquire(File file) {
+        long length = file.length();
+        if (!isEnabled() || length == 0 || length > maxFileSize) {
+            return null;
+        }
+        long modified = file.lastModified();
+        String path = file.getAbsolutePath();
+        synchronized (this) {
+            Entry entry = entries.get(path);
+            if (entry != null && entry.length == length && entry.modified == modified) {
+                entry.pins++;
+                hits.incrementAndGet();
+                return entry;
+            }
+            if (entry != null) {
+                evict(entry); // The file changed.
+            }
+        }
+        misses.incrementAndGet();
+        return load(file, path, length, modified);
+    }
+
+    /**
+     * Unpins an entry.
+     * @param sent How many bytes were sent from the cache instead of the disk.
+     */
+    public synchronized void release(Entry entry, long sent) {
+        bytesSaved.addAndGet(sent);
+        if (--entry.pins == 0 && entry.evicted) {
+            free(entry.block, entry.order);
+        }
+    }
+
+    private Entry load(File file, String path, long length, long modified) {
+        int order = 0;
+        while ((long) UNIT << order < length) {
+            order++;
+        }
+        int block;
+        synchronized (this) {
+            block = allocate(order);
+            if (block < 0) {
+                return null; // Everything is pinned.
+            }
+        }
+
+        ByteBuffer data = slice(block, (int) length);
+        boolean loaded = false;
+        try {
+            FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            try {
+                while (data.hasRemaining() && channel.read(data, data.position()) > 0) {
+                    // Keep reading until the buffer is full.
+                }
+            } finally {
+                channel.close();
+            }
+            // Only keep what was read if the file did not change meanwhile.
+            loaded = !data.hasRemaining() && file.length() == length && file.lastModified() == modified;
+        } catch (IOException e) {
+            loaded = false;
+        }
+
+        synchronized (this) {
+            if (!loaded) {
+                free(block, order);
+                return null;
+            }
+            data.flip();
+            Entry entry = new Entry(path, length, modified, block, order, data);
+            Entry previous = entries.put(path, entry);
+            if (previous != null) {
+                previous.evicted = true; // Loaded by another session at the same time.
+                usedBytes -= blockSize(previous.order);
+                if (previous.pins == 0) {
+                    free(previous.block, previous.order);
+                }
+            }
+            usedBytes += blockSize(order);
+            entry.pins++;
+            return entry;
+        }
+    }
+
+    /**
+     * Takes a free block of the order, evicting the least recently used files until there is one.
+     * Must hold the lock.
+     * @return The first unit of the block, -1 if no block could be freed.
+     */
+    private int allocate(int order) {
+        while (true) {
+            for (int o = order; o <= maxOrder; o++) {
+                Iterator<Integer> free = freeBlocks.get(o).iterator();
+                if (!free.hasNext()) {
+                    continue;
+                }
+                int block = free.next();
+                free.remove();
+                freeOrder[block] = 0;
+                while (o > order) { // Split, keeping the first half.
+                    o--;
+                    int buddy = block + (1 << o);
+                    freeBlocks.get(o).add(buddy);
+                    freeOrder[buddy] = (byte) (o + 1);
+                }
+                return block;
+            }
+            if (slabCount < slabs.length) {
+                slabs[slabCount] = ByteBuffer.allocateDirect(slabSize);
+                free(slabCount << maxOrder, maxOrder);
+                slabCount++;
+                continue;
+            }
+            Iterator<Entry> eldest = entries.values().iterator();
+            if (!eldest.hasNext()) {
+                return -1;
+            }
+            Entry victim = eldest.next();
+            eldest.remove();
+            victim.evicted = true;
+            usedBytes -= blockSize(victim.order);
+            if (victim.pins == 0) {
+                free(victim.block, victim.order);
+            }
+        }
+    }
+
+    /**
+     * Returns a block, merging it with its buddy while the buddy is free too. Must hold the lock.
+     */
+    private void free(int block, int order) {
+        while (order < maxOrder) {
+            int buddy = block ^ (1 << order);
+            if (freeOrder[buddy] != order + 1) {
+                break;
+            }
+            freeBlocks.get(order).remove(buddy);
+            freeOrder[buddy] = 0;
+            block = Math.min(block, buddy);
+            order++;
+        }
+        freeBlocks.get(order).add(block);
+        freeOrder[block] = (byte) (order + 1);
+    }
+
+    /**
+     * Removes an entry from the cache. Must hold the lock.
+     */
+    private void evict(Entry entry) {
+        entries.remove(entry.path);
+        entry.evicted = true;
+        usedBytes -= blockSize(entry.order);
+        if (entry.pins == 0) {
+            free(entry.block, entry.order);
+        }
+    }
+
+    private ByteBuffer slice(int block, int length) {
+        ByteBuffer slab = slabs[block >> maxOrder].duplicate();
+        int offset = (block & ((1 << maxOrder) - 1)) * UNIT;
+        slab.limit(offset + length);
+        slab.position(offset);
+        return slab.slice();
+    }
+
+    private static long blockSize(int order) {
+        return (long) UNIT << order;
+    }
+
+    /**
+     * @return The fraction of cacheable downloads served from the cache.
+     */
+    public double getHitRatio() {
+        long hit = hits.get();
+        long total = hit + misses.get();
+        return total == 0 ? 0 : (double) hit / total;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return The number of bytes sent from the cache instead of read from disk.
+     */
+    public long getBytesSaved() {
+        return bytesSaved.get();
+    }
+
+    /**
+     * @return The number of files cached.
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return The bytes of cache memory holding files.
+     */
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    /**
+     * @return The bytes of cache memory, used or not, that can be allocated.
+     */
+    public long getCapacity() {
+        return (long) slabs.length * slabSize;
+    }
+}
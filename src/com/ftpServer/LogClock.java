@@ -0,0 +1,161 @@
+package com.cs472;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Formats wall clock timestamps for the log without creating objects per call.
+ * The date and time up to the second is formatted once per second and cached, only the fraction is
+ * appended for each message. Microseconds are derived from System.nanoTime() against a base that is
+ * re-synchronised with System.currentTimeMillis() whenever the two drift apart. Timestamps never go back,
+ * even when re-synchronising moves the base backwards.
+ */
+public class LogClock {
+    /**
+     * The supported timestamp formats.
+     */
+    public enum Format {
+        ISO8601,      // 2016-09-25T20:00:00.000200Z
+        EPOCH_MICROS  // 1474833600000200
+    }
+
+    private static final long MAX_DRIFT_MICROS = 1000;
+
+    private final Format format;
+    private volatile Calibration calibration;
+    private final AtomicLong lastMicros = new AtomicLong(Long.MIN_VALUE); // The latest timestamp handed out.
+    private volatile CachedSecond cachedSecond = new CachedSecond(Long.MIN_VALUE, "");
+
+    public LogClock(Format format) {
+        this.format = format;
+        this.calibration = new Calibration(System.currentTimeMillis() * 1000, System.nanoTime());
+    }
+
+    /**
+     * Reads the timestamp format from the config, defaulting to ISO-8601.
+     */
+    public static Format parseFormat(String value) {
+        if (value != null && value.equalsIgnoreCase("epoch_micros")) {
+            return Format.EPOCH_MICROS;
+        }
+        return Format.ISO8601;
+    }
+
+    /**
+     * @return Nanoseconds from an arbitrary origin, only useful for measuring elapsed time.
+     */
+    public static long monotonicNanos() {
+        return System.nanoTime();
+    }
+
+    /**
+     * @return Microseconds since the epoch, never less than the previous call returned.
+     */
+    public long epochMicros() {
+        long nanos = System.nanoTime();
+        Calibration base = calibration;
+        long micros = base.epochMicros + (nanos - base.nanos) / 1000;
+        long wallMicros = System.currentTimeMillis() * 1000;
+        if (Math.abs(micros - wallMicros) > MAX_DRIFT_MICROS) {
+            // The wall clock was adjusted or the two clocks drifted, start from the wall clock again.
+            calibration = new Calibration(wallMicros, nanos);
+            micros = wallMicros;
+        }
+
+        // Re-synchronising can move back by up to the millisecond the wall clock is truncated to, hold until it catches up.
+        long last;
+        do {
+            last = lastMicros.get();
+            if (micros <= last) {
+                return last;
+            }
+        } while (!lastMicros.compareAndSet(last, micros));
+        return micros;
+    }
+
+    /**
+     * Appends the current time in the configured format.
+     */
+    public void appendTimestamp(StringBuilder out) {
+        long micros = epochMicros();
+        if (format == Format.EPOCH_MICROS) {
+            out.append(micros);
+            return;
+        }
+
+        long second = Math.floorDiv(micros, 1000000L);
+        CachedSecond cached = cachedSecond;
+        if (cached.second != second) {
+            StringBuilder text = new StringBuilder(20);
+            appendDateTime(second, text, true);
+            cached = new CachedSecond(second, text.toString());
+            cachedSecond = cached;
+        }
+        out.append(cached.text).append('.');
+        int fraction = (int) (micros - second * 1000000L);
+        for (int digit = 100000; digit > 0; digit /= 10) {
+            out.append((char) ('0' + fraction / digit % 10));
+        }
+        out.append('Z');
+    }
+
+    /**
+     * Appends a UTC date and time as YYYY-MM-DDTHH:MM:SS, or YYYYMMDDHHMMSS without separators.
+     */
+    public static void appendDateTime(long epochSecond, StringBuilder out, boolean separators) {
+        long days = Math.floorDiv(epochSecond, 86400L);
+        int secondOfDay = (int) (epochSecond - days * 86400L);
+
+        // Civil date from days since 1970-01-01 (Howard Hinnant's algorithm).
+        long z = days + 719468;
+        long era = Math.floorDiv(z, 146097);
+        long dayOfEra = z - era * 146097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long mp = (5 * dayOfYear + 2) / 153;
+        int day = (int) (dayOfYear - (153 * mp + 2) / 5 + 1);
+        int month = (int) (mp < 10 ? mp + 3 : mp - 9);
+        long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+
+        out.append(year);
+        if (separators) out.append('-');
+        appendTwoDigits(month, out);
+        if (separators) out.append('-');
+        appendTwoDigits(day, out);
+        if (separators) out.append('T');
+        appendTwoDigits(secondOfDay / 3600, out);
+        if (separators) out.append(':');
+        appendTwoDigits(secondOfDay / 60 % 60, out);
+        if (separators) out.append(':');
+        appendTwoDigits(secondOfDay % 60, out);
+    }
+
+    private static void appendTwoDigits(int value, StringBuilder out) {
+        out.append((char) ('0' + value / 10)).append((char) ('0' + value % 10));
+    }
+
+    /**
+     * A wall clock reading and the nanoTime it was taken at.
+     */
+    private static class Calibration {
+        final long epochMicros;
+        final long nanos;
+
+        Calibration(long epochMicros, long nanos) {
+            this.epochMicros = epochMicros;
+            this.nanos = nanos;
+        }
+    }
+
+    /**
+     * The formatted text of one second.
+     */
+    private static class CachedSecond {
+        final long second;
+        final String text;
+
+        CachedSecond(long second, String text) {
+            this.second = second;
+            this.text = text;
+        }
+    }
+}
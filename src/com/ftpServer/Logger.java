@@ -1,73 +1,99 @@
 package com.cs472;
 
 import java.io.*;
-import java.nio.file.*;
-import java.util.concurrent.locks.Lock;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * A simple class for handling logging to a file.
+ * In async mode callers only put messages in a ring buffer, and a single writer thread writes them in batches.
  */
 public class Logger {
-    private boolean tee = false;
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
     private final Writer out;
     private Config config;
     private String filename;
+    private final LogClock clock;
+
+    // Log lines are built in a reused per-thread buffer.
+    private static final ThreadLocal<StringBuilder> lines = new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder(256);
+        }
+    };
+
+    // Only used in async mode.
+    private MpscRingBuffer<String> queue;
+    private Thread writerThread;
+    private volatile boolean writerParked = false;
+    private volatile boolean closing = false;
+    private boolean blockWhenFull;
+    private long flushIntervalNanos;
+    private int flushBytes;
+    private final AtomicLong dropped = new AtomicLong();
 
     /**
      * Opens the log file for writing.
-     * @param outputFile The path to the output file
+     * @param config Where the log directory and logging options are read from.
      * @throws java.io.IOException If there is an error opening the output file
      */
     public Logger(Config config) throws IOException {
-        // TODO: Make sure log file is specified.
+        // Always set, Config falls back to a default directory when the setting is missing or empty.
         String logDirectory =  config.getString(Config.LOG_DIRECTORY);
         if (!new File(logDirectory).isDirectory()) {
             System.out.println("The specified log directory, " + logDirectory + ", does not exist.");
             System.exit(1);
+        } else if (!new File(logDirectory).canWrite()) {
+            System.out.println("The specified log directory, " + logDirectory + ", is not writable.");
+            System.exit(1);
         }
         logDirectory = logDirectory + (logDirectory.endsWith(File.separator)?"":File.separator);
         this.filename = logDirectory + "logfile";
-        init(filename, config.getInt(Config.NUM_LOG_FILES));
 
         this.config = config;
-        out = new FileWriter(this.filename, true);
-        out.write(getTime() + " (SUCCESS) Opened log file\n");
-    }
-
-    private static void init(String filename, int maxDepth) {
-        if (maxDepth == 0) {
-            return;
+        this.clock = new LogClock(LogClock.parseFormat(config.getString(Config.LOG_TIME_FORMAT)));
+        boolean async = config.getString(Config.LOG_MODE).equalsIgnoreCase("async");
+        out = new RotatingLogFile(filename, config.getInt(Config.NUM_LOG_FILES),
+                config.getInt(Config.LOG_MAX_SIZE), config.getInt(Config.LOG_ROTATE_INTERVAL) * 1000L,
+                config.getBoolean(Config.LOG_MMAP), async ? WRITE_BUFFER_SIZE : 0);
+        out.append(format("Opened log file", false));
+        if (async) {
+            startWriter();
         }
 
-        String postFix = filename.contains(".")?filename.split("\\.")[1]:"";
-        int postFixNum;
-        try {
-            postFixNum = postFix.isEmpty() ? -1 : Integer.parseInt(postFix);
-        }catch(NumberFormatException e) {
-            postFixNum = -1;
-        }
-
-        postFix = "." + postFix;
-
-        if(new File(filename).exists()) {
-            Path path = Paths.get(filename);
-            String newFileName = filename.replace(postFix, "") + String.format(".%03d", (postFixNum+1));
-            init(newFileName, maxDepth-1);
-            try {
-                Files.move(path, Paths.get(newFileName), StandardCopyOption.REPLACE_EXISTING);
-
-            } catch (IOException e) {
-                e.printStackTrace();
+        // Write out whatever is still queued, and trim mapped segments, when the server is stopped.
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
             }
-        }
-        try {
-            FileWriter writer = new FileWriter(filename);
-            writer.write("Test");
-            writer.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        }));
+    }
 
+    /**
+     * Starts the thread that drains the queue in async mode.
+     */
+    private void startWriter() {
+        queue = new MpscRingBuffer<String>(config.getInt(Config.LOG_QUEUE_SIZE));
+        blockWhenFull = config.getString(Config.LOG_OVERFLOW).equalsIgnoreCase("block");
+        flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(config.getInt(Config.LOG_FLUSH_INTERVAL));
+        flushBytes = config.getInt(Config.LOG_FLUSH_BYTES);
+
+        writerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drainQueue();
+            }
+        }, "log-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
     }
 
     /**
@@ -75,6 +101,7 @@ public class Logger {
      */
     public Logger() {
         out = new OutputStreamWriter(System.out);
+        clock = new LogClock(LogClock.Format.ISO8601);
     }
 
     /**
@@ -82,7 +109,33 @@ public class Logger {
      * @throws java.io.IOException If there is an issue closing the log file.
      */
     public void close() throws IOException {
-        out.close();
+        closing = true;
+        if (writerThread != null) {
+            LockSupport.unpark(writerThread);
+            try {
+                writerThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (out) {
+            out.close();
+        }
+    }
+
+    /**
+     * @return The number of messages thrown away because the async queue was full.
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * @return The number of messages waiting for the writer thread, always 0 in sync mode.
+     */
+    public int getQueueDepth() {
+        MpscRingBuffer<String> pending = queue;
+        return pending == null ? 0 : pending.size();
     }
 
     /**
@@ -96,27 +149,102 @@ public class Logger {
      * Writes the msg to the log file.
      */
     public void log(String msg, boolean error) {
-        String time = getTime();
-        String status = error?"(ERROR)":"(SUCCESS)";
-
-        if (tee) {
-            System.out.print(msg + "\n");
+        StringBuilder message = format(msg, error);
+        if (queue != null) {
+            enqueue(message.toString());
+            return;
         }
 
         try {
-            String message = time + " " + status + " " + msg + "\n";
             synchronized (out) {
-                out.write(message);
+                if (closing) {
+                    return;
+                }
+                out.append(message);
                 out.flush();
             }
         } catch (IOException e) {
             e.printStackTrace();
         }
+    }
 
+    /**
+     * Builds a log line in this thread's buffer: wall clock time, monotonic nanoseconds, status and message.
+     * The buffer is only valid until the next call on the same thread.
+     */
+    private StringBuilder format(String msg, boolean error) {
+        StringBuilder line = lines.get();
+        line.setLength(0);
+        clock.appendTimestamp(line);
+        line.append(' ').append(LogClock.monotonicNanos());
+        line.append(error ? " (ERROR) " : " (SUCCESS) ").append(msg).append('\n');
+        return line;
+    }
 
+    /**
+     * Hands a message to the writer thread, dropping it or waiting if the queue is full.
+     */
+    private void enqueue(String message) {
+        while (!queue.offer(message)) {
+            if (!blockWhenFull || closing) {
+                dropped.incrementAndGet();
+                return;
+            }
+            LockSupport.unpark(writerThread);
+            Thread.yield();
+        }
+        if (writerParked) {
+            LockSupport.unpark(writerThread);
+        }
     }
 
-    private String getTime() {
-        return "9/25/16 20:00:00.0002";
+    /**
+     * Run by the writer thread. Writes queued messages into the buffered file writer, and flushes
+     * once enough bytes are buffered or the flush interval has passed.
+     */
+    private void drainQueue() {
+        long reportedDrops = 0;
+        long unflushedBytes = 0;
+        long lastFlush = System.nanoTime();
+        while (true) {
+            boolean done = closing;
+            try {
+                String message;
+                while ((message = queue.poll()) != null) {
+                    out.write(message);
+                    unflushedBytes += message.length();
+                    if (unflushedBytes >= flushBytes) {
+                        out.flush();
+                        unflushedBytes = 0;
+                        lastFlush = System.nanoTime();
+                    }
+                }
+
+                long drops = dropped.get();
+                if (drops != reportedDrops) {
+                    out.append(format("Log queue full, dropped " + (drops - reportedDrops) + " messages", true));
+                    reportedDrops = drops;
+                }
+
+                long sinceFlush = System.nanoTime() - lastFlush;
+                if (unflushedBytes > 0 && (done || sinceFlush >= flushIntervalNanos)) {
+                    out.flush();
+                    unflushedBytes = 0;
+                    lastFlush = System.nanoTime();
+                    sinceFlush = 0;
+                }
+                if (done) {
+                    return;
+                }
+
+                writerParked = true;
+                if (queue.size() == 0 && !closing) {
+                    LockSupport.parkNanos(unflushedBytes > 0 ? flushIntervalNanos - sinceFlush : flushIntervalNanos);
+                }
+                writerParked = false;
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
     }
 }
\ No newline at end of file
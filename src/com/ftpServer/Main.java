@@ -1,7 +1,11 @@
 package com.cs472;
 
+import java.io.BufferedReader;
+import java.io.Console;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Arrays;
 
 /**
  * Contains main function, and handles reading arguments, and starting the server.
@@ -9,6 +13,23 @@ import java.io.IOException;
 public class Main {
 
     public static void main(String[] args) {
+        // Print a hashed password for the users file.
+        if (args.length > 0 && args[0].equals("--hash-password")) {
+            if (args.length > 1) {
+                System.out.println("The password is read from the terminal, not the command line.");
+                printUsage();
+                return;
+            }
+            char[] password = readPassword();
+            if (password == null) {
+                System.out.println("No password was entered.");
+                return;
+            }
+            System.out.println(CredentialStore.hash(password));
+            Arrays.fill(password, ' ');
+            return;
+        }
+
         // Check for correct number of arguments
         if (args.length < 2) {
             System.out.println("Not enough arguments specified.");
@@ -52,10 +73,30 @@ public class Main {
         server.start();
     }
 
+    /**
+     * Reads a password without echoing it, or a line from standard input when there is no terminal, so it never
+     * shows up in the process list or shell history.
+     * @return The password, or null if none was entered.
+     */
+    private static char[] readPassword() {
+        Console console = System.console();
+        if (console != null) {
+            return console.readPassword("Password: ");
+        }
+        try {
+            String line = new BufferedReader(new InputStreamReader(System.in)).readLine();
+            return line == null ? null : line.toCharArray();
+        } catch (IOException e) {
+            System.out.println("Error reading the password: " + e.getMessage());
+            return null;
+        }
+    }
+
     /**
      * Print the usage message for when used incorrectly.
      */
     private static void printUsage() {
         System.out.println("Usage: ./FTPClient [port] [ssl port]");
+        System.out.println("       ./FTPClient --hash-password");
     }
 }
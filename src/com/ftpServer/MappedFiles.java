@@ -0,0 +1,110 @@
+package com.cs472;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Memory mappings of downloaded files, shared by every session that sends the same part of the same file.
+ * Files are mapped in windows so large files do not need one huge mapping. Each mapping counts the sessions
+ * using it, and unused mappings are dropped least recently used first once there are more than the limit.
+ * A mapping of a file that has since changed is never handed out again.
+ */
+public class MappedFiles {
+    public static final long WINDOW = 64L * 1024 * 1024;
+
+    /**
+     * A mapped window of a file. Must be released once sent.
+     */
+    public static class Mapping {
+        private final String key;
+        private final long length;
+        private final long modified;
+        private final MappedByteBuffer buffer;
+        private int references = 0; // Guarded by MappedFiles.
+
+        private Mapping(String key, long length, long modified, MappedByteBuffer buffer) {
+            this.key = key;
+            this.length = length;
+            this.modified = modified;
+            this.buffer = buffer;
+        }
+
+        /**
+         * @return The window, as a new buffer positioned at its start.
+         */
+        public ByteBuffer getData() {
+            return buffer.duplicate();
+        }
+    }
+
+    private final int maxMappings;
+    private final LinkedHashMap<String, Mapping> mappings = new LinkedHashMap<String, Mapping>(16, 0.75f, true);
+
+    public MappedFiles(int maxMappings) {
+        this.maxMappings = maxMappings;
+    }
+
+    /**
+     * Finds or creates the mapping of the window of file that starts at windowStart.
+     * @param length The file length the transfer started with.
+     * @param modified The modification time the transfer started with.
+     */
+    public Mapping acquire(File file, long windowStart, long length, long modified) throws IOException {
+        String key = file.getAbsolutePath() + "@" + windowStart;
+        synchronized (this) {
+            Mapping mapping = mappings.get(key);
+            if (mapping != null && mapping.length == length && mapping.modified == modified) {
+                mapping.references++;
+                return mapping;
+            }
+        }
+
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        MappedByteBuffer buffer;
+        try {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, Math.min(WINDOW, length - windowStart));
+        } finally {
+            channel.close(); // The mapping stays valid after the channel is closed.
+        }
+        Mapping mapping = new Mapping(key, length, modified, buffer);
+        synchronized (this) {
+            mapping.references++;
+            mappings.put(key, mapping); // Replaces an outdated mapping, which is unmapped once unreachable.
+            trim();
+        }
+        return mapping;
+    }
+
+    /**
+     * Ends a session's use of a mapping.
+     */
+    public synchronized void release(Mapping mapping) {
+        mapping.references--;
+        trim();
+    }
+
+    /**
+     * Drops the least recently used mappings no session is using while there are too many. Must hold the lock.
+     */
+    private void trim() {
+        Iterator<Mapping> eldest = mappings.values().iterator();
+        while (mappings.size() > maxMappings && eldest.hasNext()) {
+            if (eldest.next().references == 0) {
+                eldest.remove();
+            }
+        }
+    }
+
+    /**
+     * @return The number of mappings held.
+     */
+    public synchronized int size() {
+        return mappings.size();
+    }
+}
@@ -0,0 +1,319 @@
+package com.cs472;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters, gauges and latency histograms describing what the server is doing, shown by STAT and the
+ * Prometheus endpoint. Metrics are created once at startup and kept by whoever records them, so recording
+ * is a lock-free add on existing objects and allocates nothing.
+ */
+public class Metrics {
+    /**
+     * Something that can be written out.
+     */
+    private abstract static class Metric {
+        final String name;
+        final String labels; // Prometheus labels such as command="RETR", empty for none.
+        final String help;
+
+        Metric(String name, String labels, String help) {
+            this.name = name;
+            this.labels = labels;
+            this.help = help;
+        }
+
+        abstract String type();
+
+        abstract void write(StringBuilder out);
+
+        /**
+         * Adds a short human readable line to a status, such as the reply to STAT.
+         */
+        void writeStatus(List<String> lines) {
+            StringBuilder out = new StringBuilder();
+            write(out);
+            lines.add(out.substring(0, out.length() - 1));
+        }
+
+        String series(String suffix, String extraLabel) {
+            String all = labels.isEmpty() ? extraLabel : extraLabel.isEmpty() ? labels : labels + "," + extraLabel;
+            return name + suffix + (all.isEmpty() ? "" : "{" + all + "}");
+        }
+    }
+
+    /**
+     * A count that only goes up.
+     */
+    public static class Counter extends Metric {
+        private final LongAdder count = new LongAdder();
+
+        Counter(String name, String labels, String help) {
+            super(name, labels, help);
+        }
+
+        public void increment() {
+            count.increment();
+        }
+
+        public void add(long amount) {
+            count.add(amount);
+        }
+
+        public long get() {
+            return count.sum();
+        }
+
+        @Override
+        String type() {
+            return "counter";
+        }
+
+        @Override
+        void write(StringBuilder out) {
+            out.append(series("", "")).append(' ').append(get()).append('\n');
+        }
+    }
+
+    /**
+     * A value read from elsewhere when the metrics are written.
+     */
+    public interface Source {
+        long get();
+    }
+
+    private static class Gauge extends Metric {
+        private final Source source;
+        private final boolean counter; // The source only goes up.
+
+        Gauge(String name, String help, Source source, boolean counter) {
+            super(name, "", help);
+            this.source = source;
+            this.counter = counter;
+        }
+
+        @Override
+        String type() {
+            return counter ? "counter" : "gauge";
+        }
+
+        @Override
+        void write(StringBuilder out) {
+            out.append(series("", "")).append(' ').append(source.get()).append('\n');
+        }
+    }
+
+    /**
+     * A fraction from 0 to 1 read from elsewhere when the metrics are written, such as a hit ratio.
+     */
+    public interface Fraction {
+        double get();
+    }
+
+    private static class Ratio extends Metric {
+        private final Fraction source;
+
+        Ratio(String name, String help, Fraction source) {
+            super(name, "", help);
+            this.source = source;
+        }
+
+        @Override
+        String type() {
+            return "gauge";
+        }
+
+        @Override
+        void write(StringBuilder out) {
+            out.append(series("", "")).append(' ').append(String.format(Locale.ROOT, "%.4f", source.get())).append('\n');
+        }
+    }
+
+    /**
+     * Durations in nanoseconds, counted in log-linear buckets like an HDR histogram: every power of two is split
+     * into SUB_BUCKETS buckets, so any recorded value is known to within 1/SUB_BUCKETS. Values below SUB_BUCKETS * 2
+     * have a bucket each.
+     */
+    public static class Histogram extends Metric {
+        private static final int SUB_BITS = 3;
+        static final int SUB_BUCKETS = 1 << SUB_BITS;
+        private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+        // Values are never negative, so the highest bit set is at most 62.
+        static final int BUCKETS = (63 - SUB_BITS + 1) * SUB_BUCKETS;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+
+        Histogram(String name, String labels, String help) {
+            super(name, labels, help);
+        }
+
+        public void record(long nanos) {
+            long value = Math.max(0, nanos);
+            buckets.incrementAndGet(index(value));
+            count.increment();
+            sum.add(value);
+        }
+
+        /**
+         * Records the time since start, a System.nanoTime() value.
+         */
+        public void recordSince(long start) {
+            record(System.nanoTime() - start);
+        }
+
+        /**
+         * A value is bucketed by its top SUB_BITS + 1 bits, the mantissa, which is SUB_BUCKETS to SUB_BUCKETS * 2 - 1,
+         * and how far those bits are shifted, the exponent.
+         */
+        static int index(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+            return (exponent + 1) * SUB_BUCKETS + (int) (value >>> exponent) - SUB_BUCKETS;
+        }
+
+        /**
+         * @return The largest value that falls into a bucket.
+         */
+        static long upperBound(int index) {
+            if (index < SUB_BUCKETS) {
+                return index;
+            }
+            int exponent = index / SUB_BUCKETS - 1;
+            long mantissa = index % SUB_BUCKETS + SUB_BUCKETS;
+            return ((mantissa + 1) << exponent) - 1;
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        /**
+         * @return The value below which the fraction quantile of recorded values fall, in nanoseconds.
+         */
+        public long getQuantile(double quantile) {
+            long total = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                total += buckets.get(i);
+            }
+            long rank = (long) Math.ceil(quantile * total);
+            long seen = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                seen += buckets.get(i);
+                if (seen >= rank && seen > 0) {
+                    return upperBound(i);
+                }
+            }
+            return 0;
+        }
+
+        @Override
+        String type() {
+            return "summary";
+        }
+
+        /**
+         * Histograms nothing was recorded in are left out.
+         */
+        @Override
+        void writeStatus(List<String> lines) {
+            long recorded = getCount();
+            if (recorded > 0) {
+                lines.add(String.format(Locale.ROOT, "%s count=%d p50=%.3fms p99=%.3fms", series("", ""), recorded,
+                        getQuantile(0.5) / 1e6, getQuantile(0.99) / 1e6));
+            }
+        }
+
+        @Override
+        void write(StringBuilder out) {
+            for (double quantile : QUANTILES) {
+                out.append(series("", "quantile=\"" + quantile + "\"")).append(' ')
+                        .append(seconds(getQuantile(quantile))).append('\n');
+            }
+            out.append(series("_sum", "")).append(' ').append(seconds(sum.sum())).append('\n');
+            out.append(series("_count", "")).append(' ').append(getCount()).append('\n');
+        }
+
+        private static String seconds(long nanos) {
+            return String.format(Locale.ROOT, "%.9f", nanos / 1e9);
+        }
+    }
+
+    private final List<Metric> metrics = new CopyOnWriteArrayList<Metric>();
+
+    public Counter counter(String name, String help) {
+        return counter(name, "", help);
+    }
+
+    /**
+     * @param labels Prometheus labels, such as reason="rate_limited".
+     */
+    public Counter counter(String name, String labels, String help) {
+        return register(new Counter(name, labels, help));
+    }
+
+    /**
+     * Registers a count kept elsewhere, such as by TlsContext.
+     */
+    public void counter(String name, String help, Source source) {
+        register(new Gauge(name, help, source, true));
+    }
+
+    public void gauge(String name, String help, Source source) {
+        register(new Gauge(name, help, source, false));
+    }
+
+    public void ratio(String name, String help, Fraction source) {
+        register(new Ratio(name, help, source));
+    }
+
+    public Histogram histogram(String name, String labels, String help) {
+        return register(new Histogram(name, labels, help));
+    }
+
+    private <M extends Metric> M register(M metric) {
+        metrics.add(metric);
+        return metric;
+    }
+
+    /**
+     * @return One line for each counter and gauge, and each histogram something was recorded in.
+     */
+    public List<String> toStatusLines() {
+        List<String> lines = new ArrayList<String>();
+        for (Metric metric : metrics) {
+            metric.writeStatus(lines);
+        }
+        return lines;
+    }
+
+    /**
+     * Writes every metric in the Prometheus text format. Series of the same name are written together.
+     */
+    public String toPrometheusText() {
+        StringBuilder out = new StringBuilder();
+        List<String> written = new ArrayList<String>();
+        for (Metric metric : metrics) {
+            if (written.contains(metric.name)) {
+                continue;
+            }
+            written.add(metric.name);
+            out.append("# HELP ").append(metric.name).append(' ').append(metric.help).append('\n');
+            out.append("# TYPE ").append(metric.name).append(' ').append(metric.type()).append('\n');
+            for (Metric series : metrics) {
+                if (series.name.equals(metric.name)) {
+                    series.write(out);
+                }
+            }
+        }
+        return out.toString();
+    }
+}
@@ -0,0 +1,77 @@
+package com.cs472;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A bounded lock-free queue for many producer threads and a single consumer thread.
+ * Each slot carries a sequence number that tells producers and the consumer whose turn it is,
+ * so offering only costs one compare-and-set on the tail.
+ */
+public class MpscRingBuffer<E> {
+    private final Object[] slots;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private volatile long head = 0; // Only written by the consumer.
+
+    /**
+     * @param capacity Rounded up to the next power of two.
+     */
+    public MpscRingBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        slots = new Object[size];
+        sequences = new AtomicLongArray(size);
+        mask = size - 1;
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * Adds an element, may be called from any thread.
+     * @return False if the buffer is full.
+     */
+    public boolean offer(E element) {
+        while (true) {
+            long position = tail.get();
+            int index = (int) (position & mask);
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    slots[index] = element;
+                    sequences.lazySet(index, position + 1);
+                    return true;
+                }
+            } else if (difference < 0) {
+                return false;
+            }
+            // Another producer claimed the slot first, try the next one.
+        }
+    }
+
+    /**
+     * Removes the oldest element, must only be called from the consumer thread.
+     * @return The element, or null if the buffer is empty.
+     */
+    @SuppressWarnings("unchecked")
+    public E poll() {
+        long position = head;
+        int index = (int) (position & mask);
+        if (sequences.get(index) != position + 1) {
+            return null;
+        }
+        E element = (E) slots[index];
+        slots[index] = null;
+        sequences.lazySet(index, position + slots.length);
+        head = position + 1;
+        return element;
+    }
+
+    /**
+     * @return The approximate number of queued elements.
+     */
+    public int size() {
+        return (int) Math.max(0, tail.get() - head);
+    }
+}
@@ -0,0 +1,297 @@
+package com.cs472;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Future;
+
+/**
+ * Accepts passive data connections for every session on one selector thread.
+ * With a port range configured, every port in the range is bound once at startup and leased to one session
+ * at a time. Without a range, each lease binds an ephemeral port that is closed again when the lease ends.
+ * Incoming connections are matched to the session holding the port, and only accepted from that session's
+ * client address, so another host cannot steal the transfer.
+ */
+public class PassivePorts implements Runnable {
+    private final Logger logger;
+    private final Selector selector;
+    private final int minPort;
+    private final Lease[] leases; // Indexed by port - minPort, empty without a range.
+    private final Queue<Integer> freePorts = new ConcurrentLinkedQueue<Integer>();
+    private final Queue<Lease> pendingRegistrations = new ConcurrentLinkedQueue<Lease>();
+    private final Inet4Address advertisedAddress;
+
+    /**
+     * Binds the configured port range, ports that are already in use are skipped.
+     * @throws IOException If the selector could not be opened.
+     */
+    public PassivePorts(Config config, Logger logger) throws IOException {
+        this.logger = logger;
+        this.selector = Selector.open();
+
+        advertisedAddress = resolveAdvertisedAddress(config.getString(Config.PASV_ADDRESS));
+
+        int min = config.getInt(Config.PASV_PORT_MIN);
+        int max = config.getInt(Config.PASV_PORT_MAX);
+        boolean ranged = min > 0 && max >= min;
+        minPort = min;
+        leases = new Lease[ranged ? max - min + 1 : 0];
+        for (int i = 0; i < leases.length; i++) {
+            try {
+                leases[i] = new Lease(bind(min + i));
+                leases[i].channel.register(selector, SelectionKey.OP_ACCEPT, leases[i]);
+                freePorts.add(min + i);
+            } catch (IOException e) {
+                logger.log("Could not bind passive port " + (min + i) + ". " + e.getMessage(), true);
+            }
+        }
+        if (ranged) {
+            logger.log("Listening for passive data connections on " + freePorts.size() + " ports from " + min + " to " + max + ".");
+        }
+    }
+
+    /**
+     * Resolves pasv_address once, so PASV replies never wait on a lookup.
+     * @return The address, or null to use the address each client connected to.
+     */
+    private Inet4Address resolveAdvertisedAddress(String address) {
+        if (address == null || address.isEmpty()) {
+            return null;
+        }
+        try {
+            for (InetAddress candidate : InetAddress.getAllByName(address)) {
+                if (candidate instanceof Inet4Address) {
+                    logger.log("Advertising " + candidate.getHostAddress() + " in PASV replies.");
+                    return (Inet4Address) candidate;
+                }
+            }
+            logger.log("pasv_address " + address + " has no IPv4 address, it will be ignored.", true);
+        } catch (UnknownHostException e) {
+            logger.log("Could not resolve pasv_address " + address + ", it will be ignored.", true);
+        }
+        return null;
+    }
+
+    /**
+     * @return The configured external address for PASV replies, or null if none is set.
+     */
+    public Inet4Address getAdvertisedAddress() {
+        return advertisedAddress;
+    }
+
+    /**
+     * Starts the acceptor thread.
+     */
+    public void start() {
+        Thread thread = new Thread(this, "pasv-acceptor");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Leases a port to a session.
+     * @param peer The only address connections are accepted from.
+     * @return The reservation, or null if every port in the range is leased.
+     * @throws IOException If an ephemeral port could not be bound.
+     */
+    public Reservation reserve(InetAddress peer) throws IOException {
+        if (leases.length == 0) {
+            Lease lease = new Lease(bind(0));
+            lease.reservation = new Reservation(lease, peer);
+            pendingRegistrations.add(lease);
+            selector.wakeup();
+            return lease.reservation;
+        }
+
+        Integer port = freePorts.poll();
+        if (port == null) {
+            return null;
+        }
+        Lease lease = leases[port - minPort];
+        lease.reservation = new Reservation(lease, peer);
+        return lease.reservation;
+    }
+
+    private static ServerSocketChannel bind(int port) throws IOException {
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        channel.socket().setReuseAddress(true);
+        channel.bind(new InetSocketAddress(port));
+        channel.configureBlocking(false);
+        return channel;
+    }
+
+    @Override
+    public void run() {
+        while (true) { // Run forever...
+            try {
+                selector.select();
+            } catch (IOException e) {
+                logger.log("Passive port selector failed. " + e.getMessage(), true);
+                return;
+            }
+
+            Lease lease;
+            while ((lease = pendingRegistrations.poll()) != null) {
+                try {
+                    lease.channel.register(selector, SelectionKey.OP_ACCEPT, lease);
+                } catch (IOException e) {
+                    lease.reservation.close(); // Closed by the session before it could be registered.
+                }
+            }
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                if (key.isValid() && key.isAcceptable()) {
+                    accept((Lease) key.attachment());
+                }
+            }
+        }
+    }
+
+    /**
+     * Accepts every pending connection on a port and hands it to the session holding the lease.
+     */
+    private void accept(Lease lease) {
+        SocketChannel channel;
+        try {
+            while ((channel = lease.channel.accept()) != null) {
+                Reservation reservation = lease.reservation;
+                InetAddress from = channel.socket().getInetAddress();
+                if (reservation == null || !reservation.peer.equals(from)) {
+                    logger.log("Refused data connection from " + from + " on passive port " + lease.port() + ".", true);
+                    channel.close();
+                    continue;
+                }
+                channel.configureBlocking(true);
+                reservation.deliver(channel.socket());
+            }
+        } catch (IOException e) {
+            logger.log("Error accepting data connection on port " + lease.port() + ". " + e.getMessage(), true);
+        }
+    }
+
+    /**
+     * A listening port and the reservation currently holding it.
+     */
+    private static class Lease {
+        final ServerSocketChannel channel;
+        volatile Reservation reservation;
+
+        Lease(ServerSocketChannel channel) {
+            this.channel = channel;
+        }
+
+        int port() {
+            return channel.socket().getLocalPort();
+        }
+    }
+
+    /**
+     * A port leased to one session. Data connections are collected through futures, and the port goes back
+     * to the pool when the reservation is closed.
+     */
+    public class Reservation {
+        private final Lease lease;
+        private final int port;
+        private final InetAddress peer;
+        private final Queue<Socket> arrived = new ArrayDeque<Socket>();
+        private final Queue<CompletableFuture<Socket>> waiting = new ArrayDeque<CompletableFuture<Socket>>();
+        private boolean closed = false;
+
+        Reservation(Lease lease, InetAddress peer) {
+            this.lease = lease;
+            this.port = lease.port();
+            this.peer = peer;
+        }
+
+        public int getPort() {
+            return port;
+        }
+
+        /**
+         * @return The next data connection from the client, completed when it connects.
+         */
+        public synchronized Future<Socket> accept() {
+            Socket socket = arrived.poll();
+            if (socket != null) {
+                return CompletableFuture.completedFuture(socket);
+            }
+            CompletableFuture<Socket> future = new CompletableFuture<Socket>();
+            if (closed) {
+                future.completeExceptionally(new IOException("Passive port closed."));
+            } else {
+                waiting.add(future);
+            }
+            return future;
+        }
+
+        /**
+         * Called by the acceptor thread, completes the oldest waiting future or keeps the connection for later.
+         */
+        synchronized void deliver(Socket socket) throws IOException {
+            if (closed) {
+                socket.close();
+                return;
+            }
+            CompletableFuture<Socket> future;
+            while ((future = waiting.poll()) != null) {
+                if (future.complete(socket)) {
+                    return;
+                }
+                // The session stopped waiting for this one, try the next.
+            }
+            arrived.add(socket);
+        }
+
+        /**
+         * Ends the lease, closing connections that were never collected.
+         */
+        public void close() {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                for (CompletableFuture<Socket> future : waiting) {
+                    future.cancel(false);
+                }
+                waiting.clear();
+                for (Socket socket : arrived) {
+                    try {
+                        socket.close();
+                    } catch (IOException e) {
+                        // Nothing else to clean up.
+                    }
+                }
+                arrived.clear();
+            }
+
+            if (leases.length > 0) {
+                lease.reservation = null;
+                freePorts.add(port);
+            } else {
+                try {
+                    lease.channel.close();
+                } catch (IOException e) {
+                    logger.log("Unable to close passive port " + port + ". " + e.getMessage(), true);
+                }
+                // The port is only released once its key is deregistered, on the selector's next select.
+                selector.wakeup();
+            }
+        }
+    }
+}
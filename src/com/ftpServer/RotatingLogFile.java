@@ -0,0 +1,213 @@
+package com.cs472;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * The log file, rotated to logfile.000, logfile.001 and so on once it grows too big or too old.
+ * In mapped mode each log file is a segment pre-allocated to the maximum size and written through a
+ * MappedByteBuffer, so appending a message is a memory copy. The segment is trimmed to its real length
+ * when it is rotated or closed.
+ */
+public class RotatingLogFile extends Writer {
+    private final String filename;
+    private final int numFiles;
+    private final long maxBytes;
+    private final long intervalMillis;
+    private final boolean mapped;
+    private final int bufferSize;
+
+    private long written;
+    private long openedAt;
+
+    // Stream mode.
+    private Writer writer;
+
+    // Mapped mode.
+    private RandomAccessFile segmentFile;
+    private MappedByteBuffer segment;
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+
+    /**
+     * Rotates any existing log files and opens a new one.
+     * @param numFiles How many rotated files to keep.
+     * @param maxBytes Rotate once the file reaches this size, 0 for no limit. Required in mapped mode.
+     * @param intervalMillis Rotate once the file is this old, 0 to never rotate by time.
+     * @param mapped True to write through pre-allocated memory mapped segments.
+     * @param bufferSize Buffer size used in stream mode, 0 for an unbuffered writer.
+     */
+    public RotatingLogFile(String filename, int numFiles, long maxBytes, long intervalMillis, boolean mapped, int bufferSize) throws IOException {
+        this.filename = filename;
+        this.numFiles = numFiles;
+        this.maxBytes = mapped ? Math.min(maxBytes, Integer.MAX_VALUE) : maxBytes;
+        this.intervalMillis = intervalMillis;
+        this.mapped = mapped && maxBytes > 0;
+        this.bufferSize = bufferSize;
+
+        rotateFiles();
+        open();
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        if (mapped) {
+            writeMapped(CharBuffer.wrap(cbuf, off, len));
+        } else {
+            writer.write(cbuf, off, len);
+            written += len;
+        }
+        rotateIfNeeded();
+    }
+
+    @Override
+    public void write(String str) throws IOException {
+        if (mapped) {
+            writeMapped(CharBuffer.wrap(str));
+        } else {
+            writer.write(str);
+            written += str.length();
+        }
+        rotateIfNeeded();
+    }
+
+    /**
+     * Mapped segments need no flushing, the bytes are already in the page cache.
+     */
+    @Override
+    public void flush() throws IOException {
+        if (!mapped) {
+            writer.flush();
+        }
+        rotateIfNeeded();
+    }
+
+    @Override
+    public void close() throws IOException {
+        closeCurrent();
+    }
+
+    /**
+     * Copies the message into the segment, rotating first if it does not fit. A message longer than a whole segment
+     * is appended to a file of its own through a stream instead of being cut short.
+     */
+    private void writeMapped(CharBuffer chars) throws IOException {
+        if (encodeMapped(chars)) {
+            return;
+        }
+        rotate();
+        if (!encodeMapped(chars)) {
+            closeCurrent();
+            Writer stream = new OutputStreamWriter(new FileOutputStream(filename, true), StandardCharsets.UTF_8);
+            try {
+                stream.append(chars);
+            } finally {
+                stream.close();
+            }
+            rotate();
+        }
+    }
+
+    /**
+     * @return False, with the segment and chars left as they were, if the message does not fit in the segment.
+     */
+    private boolean encodeMapped(CharBuffer chars) {
+        int start = segment.position();
+        int mark = chars.position();
+        encoder.reset();
+        if (encoder.encode(chars, segment, true).isOverflow()) {
+            chars.position(mark);
+            segment.position(start);
+            return false;
+        }
+        written = segment.position();
+        return true;
+    }
+
+    private void rotateIfNeeded() throws IOException {
+        boolean tooBig = maxBytes > 0 && written >= maxBytes;
+        boolean tooOld = intervalMillis > 0 && System.currentTimeMillis() - openedAt >= intervalMillis;
+        if (tooBig || tooOld) {
+            rotate();
+        }
+    }
+
+    /**
+     * Closes the current file, shifts the rotated files and starts a new one.
+     */
+    private void rotate() throws IOException {
+        closeCurrent();
+        rotateFiles();
+        open();
+    }
+
+    private void open() throws IOException {
+        written = 0;
+        openedAt = System.currentTimeMillis();
+        if (mapped) {
+            segmentFile = new RandomAccessFile(filename, "rw");
+            long existing = Math.min(segmentFile.length(), maxBytes);
+            segment = segmentFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, maxBytes);
+            segment.position((int) existing);
+            written = existing;
+        } else {
+            Writer fileWriter = new OutputStreamWriter(new FileOutputStream(filename, true), StandardCharsets.UTF_8);
+            writer = bufferSize > 0 ? new BufferedWriter(fileWriter, bufferSize) : fileWriter;
+        }
+    }
+
+    private void closeCurrent() throws IOException {
+        if (mapped) {
+            if (segment == null) {
+                return;
+            }
+            int length = segment.position();
+            segment.force();
+            segment = null;
+            // Drop the unused pre-allocated tail so readers only see what was logged.
+            segmentFile.getChannel().truncate(length);
+            segmentFile.close();
+        } else if (writer != null) {
+            writer.close();
+            writer = null;
+        }
+    }
+
+    /**
+     * Moves logfile to logfile.000, logfile.000 to logfile.001 and so on, deleting the oldest.
+     * If no rotated files are kept the current file is just deleted.
+     */
+    private void rotateFiles() throws IOException {
+        if (numFiles <= 0) {
+            Files.deleteIfExists(Paths.get(filename));
+            return;
+        }
+        if (!new File(filename).exists()) {
+            return;
+        }
+        Files.deleteIfExists(Paths.get(rotatedName(numFiles - 1)));
+        for (int i = numFiles - 2; i >= 0; i--) {
+            File rotated = new File(rotatedName(i));
+            if (rotated.exists()) {
+                Files.move(rotated.toPath(), Paths.get(rotatedName(i + 1)), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        Files.move(Paths.get(filename), Paths.get(rotatedName(0)), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private String rotatedName(int index) {
+        return filename + String.format(".%03d", index);
+    }
+}
@@ -0,0 +1,122 @@
+package com.cs472;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Owns every thread the server runs work on, so the threading model can be chosen in the config.
+ * In virtual mode each task gets its own virtual thread, in platform mode tasks share a bounded pool.
+ */
+public class ServerExecutors {
+    public static final String VIRTUAL = "virtual";
+
+    private final boolean virtual;
+    private final ExecutorService sessions;
+    private final ExecutorService tasks;
+    private final ScheduledExecutorService scheduler;
+    private final TimingWheel timingWheel;
+
+    public ServerExecutors(Config config, Logger logger) {
+        boolean useVirtual = config.getString(Config.THREAD_MODE).equalsIgnoreCase(VIRTUAL);
+        if (useVirtual && virtualThreadFactory() == null) {
+            logger.log("Virtual threads are not supported by this JVM, using a platform thread pool.", true);
+            useVirtual = false;
+        }
+        this.virtual = useVirtual;
+
+        int maxThreads = config.getInt(Config.MAX_THREADS);
+        sessions = newWorkerPool("session", maxThreads);
+        tasks = newWorkerPool("task", maxThreads);
+        ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, new NamedThreadFactory("scheduler"));
+        timer.setRemoveOnCancelPolicy(true); // Timeouts are cancelled far more often than they run.
+        scheduler = timer;
+        timingWheel = new TimingWheel(scheduler, tasks, 1000);
+        logger.log("Running sessions on " + (virtual ? "virtual threads." : "a pool of up to " + maxThreads + " platform threads."));
+    }
+
+    /**
+     * @return The executor control sessions run on.
+     */
+    public ExecutorService sessions() {
+        return sessions;
+    }
+
+    /**
+     * @return The executor for short lived work such as passive accepts and data transfers.
+     */
+    public ExecutorService tasks() {
+        return tasks;
+    }
+
+    /**
+     * @return The single shared thread used for delayed work such as timeouts.
+     */
+    public ScheduledExecutorService scheduler() {
+        return scheduler;
+    }
+
+    /**
+     * @return The wheel that tracks idle deadlines for all sessions, driven by the scheduler thread.
+     */
+    public TimingWheel timingWheel() {
+        return timingWheel;
+    }
+
+    /**
+     * Creates an executor of at most the given number of platform threads, or a virtual thread per task in virtual mode.
+     */
+    public ExecutorService newWorkerPool(String name, int threads) {
+        if (virtual) {
+            return newVirtualExecutor();
+        }
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory(name));
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    private ExecutorService newVirtualExecutor() {
+        try {
+            return (ExecutorService) virtualThreadFactory().invoke(null);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Could not create a virtual thread executor.", e);
+        }
+    }
+
+    /**
+     * Looks up Executors.newVirtualThreadPerTaskExecutor, which only exists on newer JVMs.
+     * @return The method, or null if virtual threads are unavailable.
+     */
+    private static Method virtualThreadFactory() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Names platform threads after the pool they belong to.
+     */
+    private static class NamedThreadFactory implements ThreadFactory {
+        private final String name;
+        private final AtomicInteger count = new AtomicInteger();
+
+        NamedThreadFactory(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            return new Thread(runnable, name + "-" + count.incrementAndGet());
+        }
+    }
+}
@@ -1,17 +1,250 @@
 package com.cs472;
 
+import javax.net.ssl.SSLSocket;
 import java.io.*;
 import java.net.*;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
-import java.util.Timer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
 
 /**
  * Handles interactions with a single user.
  */
 public class SessionHandler implements Runnable {
-    private final static long TIMEOUT = 1000*60*10; // Timeout after 10 minutes
-    private final Map<String, Integer> activeUsers;
+    private final static long DATA_TIMEOUT = 1000*30; // Wait 30 seconds for passive data connections
+
+    // One handler per verb, shared by every session.
+    private static final CommandRegistry<SessionHandler> commands = new CommandRegistry<SessionHandler>();
+    static {
+        commands.register(new CommandRegistry.Command<SessionHandler>("USER", true) {
+            @Override
+            public void run(SessionHandler session, String argument) {
+                session.handleUser(argument);
+            }
+        });
+        commands.register(new CommandRegistry.Command<SessionHandler>("PASS", true) {
+            @Override
+            public void run(SessionHandler session, String argument) {
+                session.handlePass(argument);
+            }
+        });
+        commands.register(new CommandRegistry.Command<SessionHandler>("CWD", true) {
+            @Override
+            public void run(SessionHandler session, String argument) {
+                session.cwd(argument);
+            }
+        });
+        commands.register(new CommandRegistry.Command<SessionHandler>("CDUP", false) {
+            @Override
+            public void run(SessionHandler session, String argument) {
+                session.cdup();
+            }
+        });
+        commands.register(new CommandRegistry.Command<SessionHandler>("PWD", false) {
+            @Override
+            public void run(SessionHandler session, String argument) {
+                session.pwd();
+            }
+        });
+        commands.register(new CommandRegistry.Command<SessionHandler>("QUIT", false) {
+            @Override
+            public void run(SessionHandler session, String argument) {
+                session.quit();
+            }
+        });
+        commands.register(new CommandRegistry.Command<SessionHandler>("PASV", false) {
+            @Override
+            public void run(SessionHandler session, String argument) {
+                session.pasv();
+            }
+        });
+        commands.register(new CommandRegistry.Command<SessionHandler>("EPSV", false) {
+            @Override
+            public void run(SessionHandler session, String argument) {
+                session.epsv();
+            }
+        });
+        commands.register(new CommandRegistry.Command<SessionHandler>("PORT", true) {
+            @Override
+            public void run(SessionHandler session, String argument) {
+                session.port(argument);
+            }
+        });
+        commands.register(new CommandRegistry.Command<SessionHandler>("EPRT", true) {
+            @Override
+            public void run(SessionHandler session, String argument) {
+                session.eprt(argument);
+            }
+        });
+        commands.register(new CommandRegistry.Command<SessionHandler>("AUTH", true) {
+            @Override
+            public void run(SessionHandler session, String argument) {
+                session.auth(argument);
+            }
+        });
+        commands.register(new CommandRegistry.Command<SessionHandler>("PBSZ", true) {
+            @Override
+            public void run(SessionHandler session, String argument) {
+                session.pbsz();
+            }
+        });
+        commands.register(new CommandRegistry.Command<SessionHandler>("PROT", true) {
+            @Override
+            public void run(SessionHandler session, String argument) {
+                session.prot(argument);
+            }
+        });
+        commands.register(new CommandRegistry.Command<SessionHandler>("TYPE", false) {
+            @Override
+            public void run(SessionHandler session, String argument) {
+                session.type();
+            }
+        });
+        commands.register(new CommandRegistry.Command<SessionHandler>("MODE", true) {
+            @Override
+            public void run(SessionHandler session, String argument) {
+                session.mode(argument);
+            }
+        });
+        commands.register(new CommandRegistry.Command<SessionHandler>("OPTS", true) {
+            @Override
+            public void run(SessionHandler session, String argument) {
+                session.opts(argument);
+            }
+        });
+        commands.register(new CommandRegistry.Command<SessionHandler>("REST", true) {
+            @Override
+            public void run(SessionHandler session, String argument) {
+                session.rest(argument);
+            }
+        });
+        commands.register(new CommandRegistry.Command<SessionHandler>("RETR", true) {
+            @Override
+            public void run(SessionHandler session, String argument) {
+                session.retr(argument);
+            }
+        });
+        commands.register(new CommandRegistry.Command<SessionHandler>("STOR", true) {
+            @Override
+            public void run(SessionHandler session, String argument) {
+                session.stor(argument);
+            }
+        });
+        commands.register(new CommandRegistry.Command<SessionHandler>("APPE", true) {
+            @Override
+            public void run(SessionHandler session, String argument) {
+                session.appe(argument);
+            }
+        });
+        commands.register(new CommandRegistry.Command<SessionHandler>("STOU", false) {
+            @Override
+            public void run(SessionHandler session, String argument) {
+                session.stou(argument);
+            }
+        });
+        commands.register(new CommandRegistry.Command<SessionHandler>("SIZE", true) {
+            @Override
+            public void run(SessionHandler session, String argument) {
+                session.size(argument);
+            }
+        });
+        commands.register(new CommandRegistry.Command<SessionHandler>("MDTM", true) {
+            @Override
+            public void run(SessionHandler session, String argument) {
+                session.mdtm(argument);
+            }
+        });
+        commands.register(new CommandRegistry.Command<SessionHandler>("LIST", false) {
+            @Override
+            public void run(SessionHandler session, String argument) {
+                session.list(DirectoryLister.Format.LIST, argument);
+            }
+        });
+        commands.register(new CommandRegistry.Command<SessionHandler>("NLST", false) {
+            @Override
+            public void run(SessionHandler session, String argument) {
+                session.list(DirectoryLister.Format.NLST, argument);
+            }
+        });
+        commands.register(new CommandRegistry.Command<SessionHandler>("MLSD", false) {
+            @Override
+            public void run(SessionHandler session, String argument) {
+                session.list(DirectoryLister.Format.MLSD, argument);
+            }
+        });
+        commands.register(new CommandRegistry.Command<SessionHandler>("MLST", false) {
+            @Override
+            public void run(SessionHandler session, String argument) {
+                session.mlst(argument);
+            }
+        });
+        commands.register(new CommandRegistry.Command<SessionHandler>("FEAT", false) {
+            @Override
+            public void run(SessionHandler session, String argument) {
+                session.feat();
+            }
+        });
+        commands.register(new CommandRegistry.Command<SessionHandler>("HELP", false) {
+            @Override
+            public void run(SessionHandler session, String argument) {
+                session.help();
+            }
+        });
+        commands.register(new CommandRegistry.Command<SessionHandler>("STAT", false) {
+            @Override
+            public void run(SessionHandler session, String argument) {
+                session.stat(argument);
+            }
+        });
+    }
+
+    /**
+     * The metrics sessions record into, created once per server so recording never allocates.
+     */
+    static class SessionMetrics {
+        private final Metrics metrics;
+        private final Map<CommandRegistry.Command<SessionHandler>, Metrics.Histogram> commandTimes =
+                new IdentityHashMap<CommandRegistry.Command<SessionHandler>, Metrics.Histogram>();
+        private final Metrics.Counter unknownCommands;
+        private final Metrics.Counter bytesSent;
+        private final Metrics.Counter bytesReceived;
+        private final Metrics.Counter transfersComplete;
+        private final Metrics.Counter transfersFailed;
+        private final Metrics.Histogram transferTime;
+
+        SessionMetrics(Metrics metrics) {
+            this.metrics = metrics;
+            for (String verb : commands.getVerbs()) {
+                commandTimes.put(commands.find(verb), metrics.histogram("ftp_command_seconds",
+                        "command=\"" + verb + "\"", "Time to run a control command, including its transfer."));
+            }
+            unknownCommands = metrics.counter("ftp_commands_unknown_total", "Control commands that were not recognised.");
+            bytesSent = metrics.counter("ftp_transfer_bytes_total", "direction=\"out\"", "Bytes sent and received on data connections.");
+            bytesReceived = metrics.counter("ftp_transfer_bytes_total", "direction=\"in\"", "Bytes sent and received on data connections.");
+            transfersComplete = metrics.counter("ftp_transfers_total", "result=\"complete\"", "Finished data transfers.");
+            transfersFailed = metrics.counter("ftp_transfers_total", "result=\"failed\"", "Finished data transfers.");
+            transferTime = metrics.histogram("ftp_transfer_seconds", "", "Time taken by data transfers.");
+        }
+    }
+    private final ConnectionLimiter connectionLimiter;
+    private final InetAddress remoteAddress;
+    private final AtomicBoolean released = new AtomicBoolean(); // Has the connection been released from the limiter.
     private final String remoteIP;
+    private final String remoteHost;
     private boolean running = false; // Is server currently responding to this user.
     private String username;
 
@@ -21,85 +254,212 @@ public class SessionHandler implements Runnable {
 
     private final Logger logger;
     private final Config config;
-    private final Socket socket;
-    private ServerSocket dataChannel;
+    private volatile Socket socket; // Replaced by its TLS wrapper after AUTH TLS.
+    private PassivePorts.Reservation passivePort;
     private Socket dataChannelSocket;
-    private BufferedReader in = null;
-    private OutputStreamWriter out = null;
+    private TlsChannel dataTlsChannel; // Set instead of wrapping dataChannelSocket when RETR sends through an SSLEngine.
+    private Future<Socket> pendingDataSocket;
+    private String dataMode; // How the current data connection was opened, for the transfer log.
+    private long restartOffset = 0; // Set by REST, used by the next RETR or STOR.
+    private int parallelStreams = 1; // Data connections used by passive RETR, set by OPTS RETR PARALLEL=n.
+    private boolean compressed = false; // MODE Z, data is sent as a zlib stream.
+    private int compressionLevel;
+    private final boolean syncOnClose; // Uploads are forced to disk before they are acknowledged.
+    private final long syncBytes; // Uploads are also forced to disk every this many bytes, 0 for never.
+    private String pasvAddress; // Cached address part of PASV replies.
+    private ControlLineReader in = null;
+    private Writer out = null;
 
     // Current working directory.
     private File directory = new File(System.getProperty("user.dir"));
-    private Timer timoutTimer;
-    private Map<String, String> validUsers;
+    private final ServerExecutors executors;
+    private final PassivePorts passivePorts;
+    private final TlsContext tlsContext;
+    private final BandwidthLimiter bandwidthLimiter;
+    private final FileCache fileCache;
+    private final MappedFiles mappedFiles; // Null unless TLS downloads are sent from mapped files.
+    private boolean protectionBufferSet = false; // PBSZ was sent on a secure control connection.
+    private boolean protectData = false; // PROT P, data connections use TLS.
+    private final DirectoryLister lister;
+    private final TransferLog transferLog;
+    private final TimingWheel.Timeout idleTimeout;
+    private volatile boolean transferring = false; // The idle deadline is timing a data transfer.
+    private volatile boolean stalled = false; // A data transfer was aborted for making no progress.
+    // Every data socket opened since the last closeData, before any TLS, so a stalled transfer can be aborted.
+    private final Queue<Socket> openDataSockets = new ConcurrentLinkedQueue<Socket>();
+    private final Runnable transferProgress = new Runnable() {
+        @Override
+        public void run() {
+            idleTimeout.reset();
+        }
+    };
+    private final CredentialStore credentials;
+    private final SessionMetrics sessionMetrics;
 
-    public SessionHandler(Socket socket, Logger logger, Map<String, String> valisUsers, Config config, Map<String, Integer> activeUsers) {
-        this.currentState = State.NONE;
-        this.socket = socket;
-        this.logger = logger;
-        this.running = true;
-        this.validUsers = valisUsers;
-        this.config = config;
-        this.remoteIP = socket.getRemoteSocketAddress().toString();
-        this.activeUsers = activeUsers;
+    public SessionHandler(Socket socket, FTPServer server) {
+        this(socket, server, null);
 
         try {
             out = new OutputStreamWriter(socket.getOutputStream());
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            in = new ControlLineReader(socket.getInputStream());
         } catch (IOException e) {
             e.printStackTrace();
         }
+    }
+
+    /**
+     * Creates a session whose control lines are supplied through handleLine, used by the nio control mode.
+     * @param out Where replies to the client are written.
+     */
+    SessionHandler(Socket socket, FTPServer server, Writer out) {
+        this.currentState = State.NONE;
+        this.socket = socket;
+        this.logger = server.getLogger();
+        this.running = true;
+        this.credentials = server.getCredentials();
+        this.config = server.getConfig();
+        this.remoteIP = socket.getRemoteSocketAddress().toString();
+        this.remoteHost = socket.getInetAddress().getHostAddress();
+        this.remoteAddress = socket.getInetAddress();
+        this.connectionLimiter = server.getConnectionLimiter();
+        this.executors = server.getExecutors();
+        this.passivePorts = server.getPassivePorts();
+        this.tlsContext = server.getTlsContext();
+        this.bandwidthLimiter = server.getBandwidthLimiter();
+        this.fileCache = server.getFileCache();
+        this.mappedFiles = server.getMappedFiles();
+        this.lister = server.getDirectoryLister();
+        this.transferLog = server.getTransferLog();
+        this.sessionMetrics = server.getSessionMetrics();
+        this.out = out;
+        try {
+            // Replies are already batched per read, so a reply must not wait for the ACK of the one before it.
+            socket.setTcpNoDelay(true);
+        } catch (SocketException e) {
+            logger.log("Unable to disable Nagle for " + remoteIP + ". " + e.getMessage(), true);
+        }
+        this.compressionLevel = Math.max(Deflater.BEST_SPEED, Math.min(Deflater.BEST_COMPRESSION, config.getInt(Config.MODE_Z_LEVEL)));
 
-        timoutTimer = new Timer();
-        resetTimer();
+        String policy = config.getString(Config.UPLOAD_FSYNC).trim().toLowerCase();
+        syncOnClose = !policy.equals("none");
+        long every = 0;
+        if (syncOnClose && !policy.equals("close")) {
+            try {
+                every = Long.parseLong(policy) * 1024 * 1024;
+            } catch (NumberFormatException e) {
+                logger.log("Invalid upload_fsync setting " + policy + ", syncing on close.", true);
+            }
+        }
+        syncBytes = every;
+
+        idleTimeout = executors.timingWheel().register(config.getInt(Config.IDLE_TIMEOUT) * 1000L, new TimeoutTask());
     }
 
     @Override
     public void run() {
-        logger.log(remoteIP + " has connected.");
-        activeUsers.put(remoteIP, activeUsers.get(remoteIP)+1);
+        if (socket instanceof SSLSocket) {
+            try {
+                tlsContext.handshake((SSLSocket) socket, "control");
+            } catch (IOException e) {
+                logger.log("TLS handshake with " + remoteIP + " failed. " + e.getMessage(), true);
+                disconnected();
+                return;
+            }
+        }
+        open();
+
+        String line;
+        while (running && (line = readlnFromControl()) != null) {
+            dispatch(line, hasPipelinedLine());
+        }
+        disconnected();
+    }
 
+    /**
+     * Registers the new user and sends the welcome message.
+     */
+    void open() {
+        logger.log(remoteIP + " has connected.");
         logger.log("A new user joined the server.");
         writeToControl("220 Welcome to Andrew Shidel's FTP Server!\n");
+        flushControl();
+    }
 
-        String line;
-        while (running && (line = readlnFromControl()) != null) {
-            resetTimer();
-
-            String lineParsed = line.toLowerCase().trim();
-            if (lineParsed.startsWith("user ")) {
-                handleUser(line.split(" ")[1]);
-            } else if (lineParsed.startsWith("pass ")) {
-                handlePass(line.split(" ")[1]);
-            } else if (lineParsed.startsWith("cwd ")) {
-                cwd(line.split(" ")[1]);
-            } else if (lineParsed.startsWith("cdup")) {
-                cdup();
-            } else if (lineParsed.startsWith("pasv")) {
-                pasv();
-            } else if (lineParsed.startsWith("port ")) {
-                port(lineParsed.split(" ")[1]);
-            } else if (lineParsed.startsWith("eprt ")) {
-                eprt(lineParsed.split(" ")[1]);
-            } else if (lineParsed.startsWith("epsv")) {
-                epsv();
-            } else if (lineParsed.startsWith("retr ")) {
-                retr(line.split(" ")[1]);
-            } else if (lineParsed.startsWith("pwd")) {
-                pwd();
-            } else if (lineParsed.startsWith("list")) {
-                list();
-            } else if (lineParsed.startsWith("help")) {
-                help();
-            }else if (lineParsed.startsWith("quit")) {
-                quit();
-            }else if (lineParsed.startsWith("type")) {
-                writelnToControl("200 Type set to I");
-            }else {
-                writelnToControl("502 Command not implemented.");
-            }
+    /**
+     * Handles a single line received from the client outside of run().
+     * @param line The line without its line terminator.
+     * @param more True if the client has already sent another line, the replies are then sent with its replies.
+     */
+    void handleLine(String line, boolean more) {
+        logger.log("Received \"" + line + "\" from " + username + ".");
+        dispatch(line, more);
+    }
+
+    /**
+     * @return False once the session has quit.
+     */
+    boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Should be called once the control connection has closed. Only the first call has any effect.
+     */
+    void disconnected() {
+        if (!released.compareAndSet(false, true)) {
+            return;
         }
+        running = false;
+        idleTimeout.cancel();
+        closeData();
+        closeSocket();
         logger.log(remoteIP + " has disconnected.");
-        activeUsers.put(remoteIP, activeUsers.get(remoteIP)-1);
+        connectionLimiter.release(remoteAddress);
+    }
+
+    /**
+     * Runs the command on a line received from the client.
+     * @param more True if another command is already waiting. Replies to pipelined commands are then held back
+     * and sent together after the last one, anything that waits on the client flushes them first.
+     */
+    private void dispatch(String line, boolean more) {
+        // Commands such as long transfers must not count as idle time.
+        idleTimeout.suspend();
+        try {
+            dispatchCommand(line);
+        } finally {
+            if (!more || !running) {
+                flushControl();
+            }
+            if (stalled) {
+                timeOut();
+            }
+            idleTimeout.reset();
+        }
+    }
+
+    private void dispatchCommand(String line) {
+        CommandRegistry.Command<SessionHandler> command = commands.find(line);
+        String verb = command == null ? "" : command.getVerb();
+        if (!verb.equals("REST") && !verb.equals("RETR") && !verb.equals("STOR")) {
+            restartOffset = 0; // An offset only applies to the transfer right after REST.
+        }
+        if (command == null) {
+            sessionMetrics.unknownCommands.increment();
+            writelnToControl("502 Command not implemented.");
+            return;
+        }
+        String argument = CommandRegistry.argument(line);
+        if (argument == null && command.isArgumentRequired()) {
+            writelnToControl("501 Syntax error in parameters or arguments.");
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            command.run(this, argument);
+        } finally {
+            sessionMetrics.commandTimes.get(command).recordSince(start);
+        }
     }
 
     /**
@@ -107,89 +467,689 @@ public class SessionHandler implements Runnable {
      * @param filename The path to the file to get
      */
     private void retr(String filename) {
+        long offset = restartOffset;
+        restartOffset = 0;
         if (checkDataAuth()) {
-            File file = new File(directory, filename);
-            if (file.exists() && file.isFile()) {
-                writelnToControl("150 Opening BINARY mode data connection for " + filename + " (" + file.length() + ").");
-            } else {
+            File file = resolve(filename);
+            if (!file.exists() || !file.isFile()) {
                 writelnToControl("550 Failed to open file.");
+                closeData();
+                return;
+            } else if (offset > file.length()) {
+                writelnToControl("554 Restart offset is past the end of the file.");
+                closeData();
+                return;
+            }
+            long[] ranges = !compressed && parallelStreams > 1 && passivePort != null
+                    ? parallelRanges(offset, file.length()) : null;
+            String opening = "Opening BINARY mode data connection for " + filename + " (" + file.length() + ")" +
+                    (offset > 0 ? ", restarting at " + offset + "." : ".");
+            if (ranges == null) {
+                writelnToControl("150 " + opening);
+            } else {
+                // Ranges are announced here, so the data connections carry nothing but file bytes.
+                writelnToControl("150-" + opening);
+                for (int i = 0; i < parallelStreams; i++) {
+                    writelnToControl("150-RANGE " + (i + 1) + " " + ranges[i] + " " + (ranges[i + 1] - ranges[i]));
+                }
+                writelnToControl("150 Range n is sent on the nth data connection opened.");
+            }
+            boolean plain = !compressed && ranges == null;
+            if (!secureDataConnection(plain && mappedFiles != null)) {
+                return;
             }
+            long start = System.nanoTime();
+            boolean tls = dataTlsChannel != null || dataChannelSocket instanceof SSLSocket;
+            Throttle throttle = bandwidthLimiter.throttle(username, remoteAddress, transferProgress);
+            long sent = 0;
+            boolean complete = false;
+            FileCache.Entry cached = plain ? fileCache.acquire(file) : null;
             try {
-                FileInputStream fileInputStream = new FileInputStream(file);
-                BufferedOutputStream outputStream = new BufferedOutputStream(dataChannelSocket.getOutputStream());
-                byte[] buffer = new byte[(int)file.length()];
-                while(fileInputStream.read(buffer) > 0) {
-                    outputStream.write(buffer);
+                if (cached != null) {
+                    try {
+                        sent = dataTlsChannel != null
+                                ? TransferEngine.send(cached.getData(), offset, dataTlsChannel, throttle)
+                                : TransferEngine.send(cached.getData(), offset, dataChannelSocket, throttle);
+                        complete = true;
+                    } finally {
+                        fileCache.release(cached, sent);
+                    }
+                } else if (dataTlsChannel != null) {
+                    sent = TransferEngine.sendMapped(mappedFiles, file, offset, dataTlsChannel, throttle);
+                    complete = true;
+                } else {
+                    sent = sendFile(file, offset, ranges, throttle);
+                    complete = true;
                 }
-                fileInputStream.close();
-                outputStream.flush();
-                closeData();
-            } catch (FileNotFoundException e) {
-                e.printStackTrace();
-                logger.log(e.getMessage(), true);
             } catch (IOException e) {
-                e.printStackTrace();
                 logger.log(e.getMessage(), true);
+            } finally {
+                throttle.release();
+            }
+            closeData();
+            recordTransfer("RETR", file, true, sent, start, tls, complete);
+            writelnToControl(complete ? "226 Transfer complete." : "426 Connection closed; transfer aborted.");
+        }
+    }
+
+    /**
+     * Sends a file from disk, compressed in MODE Z or over parallel connections if requested.
+     * @param ranges The parallel ranges announced to the client, or null to send on one connection.
+     * @return The number of bytes sent.
+     */
+    private long sendFile(File file, long offset, long[] ranges, Throttle throttle) throws IOException {
+        FileInputStream fileInputStream = new FileInputStream(file);
+        try {
+            FileChannel channel = fileInputStream.getChannel();
+            if (compressed) {
+                Deflater deflater = Compression.acquireDeflater(
+                        Compression.chooseLevel(file.getName(), channel, offset, compressionLevel));
+                try {
+                    return TransferEngine.sendDeflated(channel, offset, dataChannelSocket, deflater, throttle);
+                } finally {
+                    Compression.release(deflater);
+                }
+            } else if (ranges != null) {
+                return sendParallel(channel, ranges, throttle);
+            }
+            return TransferEngine.send(channel, offset, dataChannelSocket, throttle);
+        } finally {
+            fileInputStream.close();
+        }
+    }
+
+    /**
+     * Stores an uploaded file, replacing any existing file once the upload is complete.
+     * After REST the upload is instead written into the existing file from the restart offset.
+     * @param filename The path to store the file at.
+     */
+    private void stor(String filename) {
+        long offset = restartOffset;
+        restartOffset = 0;
+        if (checkDataAuth()) {
+            File file = resolve(filename);
+            if (filename == null || file.isDirectory() || !file.getAbsoluteFile().getParentFile().isDirectory()) {
+                writelnToControl("553 Could not create file.");
+                closeData();
+                return;
+            }
+            if (offset > file.length()) {
+                writelnToControl("554 Restart offset is past the end of the file.");
+                closeData();
+                return;
+            }
+            writelnToControl("150 Ok to send data.");
+            receive("STOR", file, false, offset);
+        }
+    }
+
+    /**
+     * Appends an upload to a file, creating it if needed.
+     * The data is written to the file in place, so a failed append keeps what was received and can be resumed.
+     * @param filename The path of the file to append to.
+     */
+    private void appe(String filename) {
+        if (checkDataAuth()) {
+            File file = resolve(filename);
+            if (filename == null || file.isDirectory() || !file.getAbsoluteFile().getParentFile().isDirectory()) {
+                writelnToControl("553 Could not create file.");
+                closeData();
+                return;
+            }
+            writelnToControl("150 Ok to send data.");
+            receive("APPE", file, true, 0);
+        }
+    }
+
+    /**
+     * Stores an upload under a name that does not exist yet in the working directory.
+     * @param filename Used as the start of the generated name, may be null.
+     */
+    private void stou(String filename) {
+        if (checkDataAuth()) {
+            String base = filename == null ? "upload" : new File(filename).getName();
+            File file = null;
+            // Reserve the name by creating the file, the upload then replaces it.
+            for (int i = 0; file == null && i < 1000; i++) {
+                File candidate = new File(directory, i == 0 ? base : base + "." + i);
+                try {
+                    Files.createFile(candidate.toPath());
+                    file = candidate;
+                } catch (FileAlreadyExistsException e) {
+                    // Try the next name.
+                } catch (IOException e) {
+                    break;
+                }
+            }
+            if (file == null) {
+                writelnToControl("553 Could not create file.");
+                closeData();
+                return;
+            }
+            writelnToControl("150 FILE: " + file.getName());
+            if (!receive("STOU", file, false, 0) && !file.delete()) {
+                logger.log("Unable to remove " + file + " after a failed upload.", true);
+            }
+        }
+    }
+
+    /**
+     * Receives the upload on the data connection, and replies once it is stored.
+     * Unless appending or restarting, the data goes to a temporary file in the same directory that is renamed over
+     * the target when the upload completes, so the target never holds a partial upload.
+     * @param offset Where to start writing in the existing file, 0 to replace it.
+     * @return True if the upload was stored.
+     */
+    private boolean receive(String command, File file, boolean append, long offset) {
+        if (!secureDataConnection()) {
+            return false;
+        }
+        long start = System.nanoTime();
+        boolean tls = dataChannelSocket instanceof SSLSocket;
+        Throttle throttle = bandwidthLimiter.throttle(username, remoteAddress, transferProgress);
+        long received = 0;
+        boolean complete = false;
+        Path target = file.toPath();
+        Path temp = null;
+        try {
+            FileChannel channel;
+            if (append || offset > 0) {
+                channel = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            } else {
+                // Created like any other new file, unlike createTempFile which makes it owner-only.
+                temp = target.resolveSibling("." + file.getName() + "." + Long.toHexString(System.nanoTime()) + ".part");
+                channel = FileChannel.open(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            }
+            try {
+                long position = append ? channel.size() : offset;
+                if (compressed) {
+                    Inflater inflater = Compression.acquireInflater();
+                    try {
+                        received = TransferEngine.receiveInflated(dataChannelSocket, channel, position, syncBytes, inflater, throttle);
+                    } finally {
+                        Compression.release(inflater);
+                    }
+                } else {
+                    received = TransferEngine.receive(dataChannelSocket, channel, position, syncBytes, throttle);
+                }
+                if (stalled) {
+                    // The aborted connection reads as a normal end of the upload.
+                    throw new IOException("The upload stalled.");
+                }
+                if (syncOnClose) {
+                    channel.force(true);
+                }
+            } finally {
+                channel.close();
+            }
+            if (temp != null) {
+                Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                temp = null;
+            }
+            complete = true;
+        } catch (IOException e) {
+            logger.log("Upload of " + file + " failed. " + e.getMessage(), true);
+        } finally {
+            throttle.release();
+            if (temp != null) {
+                try {
+                    Files.deleteIfExists(temp);
+                } catch (IOException e) {
+                    logger.log("Unable to remove " + temp + ". " + e.getMessage(), true);
+                }
             }
-            writelnToControl("226 Transfer complete.");
+        }
+        closeData();
+        recordTransfer(command, file, false, received, start, tls, complete);
+        writelnToControl(complete ? "226 Transfer complete." : "451 Upload failed; file not stored.");
+        return complete;
+    }
+
+    /**
+     * Splits the rest of the file into parallelStreams ranges of nearly equal length.
+     * @return The start of each range, followed by the end of the last one.
+     */
+    private long[] parallelRanges(long offset, long size) {
+        long remaining = Math.max(0, size - offset);
+        long segment = (remaining + parallelStreams - 1) / parallelStreams;
+        long[] bounds = new long[parallelStreams + 1];
+        for (int i = 0; i <= parallelStreams; i++) {
+            bounds[i] = offset + Math.min(remaining, i * segment);
+        }
+        return bounds;
+    }
+
+    /**
+     * Sends the ranges listed in the 150 reply over as many passive data connections at once, range n on the nth
+     * connection accepted. The first connection is the one already accepted, the rest are collected from the same
+     * passive port. Each connection carries only its range and is closed once it is sent. Ranges are read with
+     * positional reads, so no lock is shared.
+     * @param ranges The start of each range, followed by the end of the last one.
+     * @param throttle Shared by every range, so the connections together stay within the bandwidth limits.
+     * @return The total number of bytes sent.
+     */
+    private long sendParallel(final FileChannel source, long[] ranges, final Throttle throttle) throws IOException {
+        List<Socket> sockets = new ArrayList<Socket>();
+        sockets.add(dataChannelSocket);
+        try {
+            while (sockets.size() < ranges.length - 1) {
+                Socket socket = passivePort.accept().get(DATA_TIMEOUT, TimeUnit.MILLISECONDS);
+                openDataSockets.add(socket);
+                sockets.add(socket);
+            }
+        } catch (Exception e) {
+            for (int i = 1; i < sockets.size(); i++) {
+                sockets.get(i).close();
+            }
+            throw new IOException("Client did not open every parallel data connection. " + e.getMessage(), e);
+        }
+
+        List<Future<Long>> segments = new ArrayList<Future<Long>>();
+        for (int i = 1; i < sockets.size(); i++) {
+            final Socket socket = sockets.get(i);
+            final long position = ranges[i];
+            final long length = ranges[i + 1] - ranges[i];
+            segments.add(executors.tasks().submit(new Callable<Long>() {
+                @Override
+                public Long call() throws IOException {
+                    Socket target = socket;
+                    try {
+                        if (protectData) {
+                            target = tlsContext.wrap(socket, "data");
+                        }
+                        return TransferEngine.send(source, position, length, target, throttle);
+                    } finally {
+                        target.close();
+                    }
+                }
+            }));
+        }
+
+        // The first range is sent on this thread, and its connection closed like the others so the client sees its end.
+        IOException failure = null;
+        long sent = 0;
+        try {
+            sent = TransferEngine.send(source, ranges[0], ranges[1] - ranges[0], dataChannelSocket, throttle);
+            dataChannelSocket.close();
+        } catch (IOException e) {
+            failure = e;
+        }
+        for (Future<Long> range : segments) {
+            try {
+                sent += range.get();
+            } catch (ExecutionException e) {
+                failure = new IOException("Parallel transfer failed. " + e.getCause().getMessage(), e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failure = new IOException("Interrupted during parallel transfer.");
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return sent;
+    }
+
+    /**
+     * Starts TLS on the data connection after PROT P. Called once the 150 reply is sent, since clients only start
+     * the handshake after it. Clients normally resume the control connection's session, skipping a full handshake.
+     * @return False if the handshake failed, the data connection is then closed and the reply sent.
+     */
+    private boolean secureDataConnection() {
+        return secureDataConnection(false);
+    }
+
+    /**
+     * @param engine True to set dataTlsChannel instead of wrapping dataChannelSocket, if it has a channel.
+     */
+    private boolean secureDataConnection(boolean engine) {
+        flushControl(); // Clients wait for the 150 reply before using the data connection.
+        beginTransfer();
+        if (!protectData || dataChannelSocket instanceof SSLSocket) {
+            return true;
+        }
+        try {
+            if (engine && dataChannelSocket.getChannel() != null) {
+                dataTlsChannel = tlsContext.wrap(dataChannelSocket.getChannel(), "data");
+            } else {
+                dataChannelSocket = tlsContext.wrap(dataChannelSocket, "data");
+            }
+            return true;
+        } catch (IOException e) {
+            logger.log("TLS handshake on the data connection failed. " + e.getMessage(), true);
+            closeData();
+            writelnToControl("425 TLS negotiation on the data connection failed.");
+            return false;
         }
     }
 
     /**
      * Sends a directory listing
+     * @param format The listing format requested by the command.
+     * @param path The directory to list, or null for the working directory.
      */
-    private void list() {
+    private void list(DirectoryLister.Format format, String path) {
         if (checkDataAuth()) {
+            // Skip ls style options such as "LIST -la".
+            while (path != null && path.startsWith("-")) {
+                int space = path.indexOf(' ');
+                path = space < 0 ? null : path.substring(space + 1).trim();
+            }
+            File listed = resolve(path);
+            if (!listed.isDirectory()) {
+                writelnToControl("550 Failed to open directory.");
+                closeData();
+                return;
+            }
             writelnToControl("150 Here comes the directory listing.");
+            if (!secureDataConnection()) {
+                return;
+            }
+            long start = System.nanoTime();
+            boolean tls = dataChannelSocket instanceof SSLSocket;
+            long sent = 0;
+            Deflater deflater = compressed ? Compression.acquireDeflater(compressionLevel) : null;
+            Throttle throttle = bandwidthLimiter.throttle(username, remoteAddress, transferProgress);
             try {
-                BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(dataChannelSocket.getOutputStream()));
-                writer.write(listDir());
-                /*String[] list = directory.list();
-                for (String file : list) {
-                    //writer.write(file + "\n");
-                }*/
-                writer.flush();
+                OutputStream outputStream = throttle.wrap(dataChannelSocket.getOutputStream());
+                if (deflater != null) {
+                    DeflaterOutputStream deflated = new DeflaterOutputStream(outputStream, deflater, BufferPool.BUFFER_SIZE);
+                    sent = lister.list(listed.toPath(), format, deflated);
+                    deflated.finish();
+                } else {
+                    sent = lister.list(listed.toPath(), format, outputStream);
+                }
+                outputStream.flush();
                 closeData();
             } catch (Exception e) {
                 logger.log(e.getMessage(), true);
                 writelnToControl("426 Directory send failed. " + e.getMessage());
-                currentState = State.PASS;
+                closeData();
+                recordTransfer(format.name(), listed, true, sent, start, tls, false);
                 return;
+            } finally {
+                throttle.release();
+                if (deflater != null) {
+                    Compression.release(deflater);
+                }
             }
+            recordTransfer(format.name(), listed, true, sent, start, tls, true);
             writelnToControl("226 Directory send OK.");
         }
     }
 
-    private String listDir() throws IOException, InterruptedException {
-        Runtime r = Runtime.getRuntime();
-        String command = System.getProperty("os.name").toLowerCase().contains("windows")?"dir":"ls -l";
-        Process p = r.exec(command + " " + directory.getAbsolutePath());
-        p.waitFor();
-        BufferedReader b = new BufferedReader(new InputStreamReader(p.getInputStream()));
-        String line = "";
-        String result = "";
-        while ((line = b.readLine()) != null) {
-            result += line + "\n";
+    /**
+     * Adds a finished transfer to the metrics and the transfer log.
+     * @param startNanos System.nanoTime() when the transfer started.
+     */
+    private void recordTransfer(String command, File file, boolean outgoing, long bytes, long startNanos, boolean tls, boolean complete) {
+        (outgoing ? sessionMetrics.bytesSent : sessionMetrics.bytesReceived).add(bytes);
+        (complete ? sessionMetrics.transfersComplete : sessionMetrics.transfersFailed).increment();
+        sessionMetrics.transferTime.recordSince(startNanos);
+        if (transferLog.isEnabled()) {
+            transferLog.record(username, remoteHost, command, file.getAbsolutePath(), outgoing, bytes,
+                    System.nanoTime() - startNanos, dataMode, tls, complete);
+        }
+    }
+
+    /**
+     * Upgrades the control connection to TLS, only possible when the session reads the socket itself.
+     * @param mechanism TLS or SSL.
+     */
+    private void auth(String mechanism) {
+        if (!"tls".equalsIgnoreCase(mechanism) && !"ssl".equalsIgnoreCase(mechanism) && !"tls-c".equalsIgnoreCase(mechanism)) {
+            writelnToControl("504 Unsupported security mechanism.");
+            return;
+        } else if (socket instanceof SSLSocket) {
+            writelnToControl("503 The control connection is already secure.");
+            return;
+        } else if (in == null) {
+            writelnToControl("502 AUTH TLS is not available in nio control mode, use the TLS port.");
+            return;
+        }
+        writelnToControl("234 Proceed with negotiation.");
+        flushControl();
+        try {
+            SSLSocket secure = tlsContext.wrap(socket, "control");
+            socket = secure;
+            out = new OutputStreamWriter(secure.getOutputStream());
+            in = new ControlLineReader(secure.getInputStream());
+        } catch (IOException e) {
+            logger.log("TLS upgrade of the control connection failed for " + remoteIP + ". " + e.getMessage(), true);
+            running = false;
+            closeSocket();
+        }
+    }
+
+    /**
+     * Sets the protection buffer size, always 0 for TLS.
+     */
+    private void pbsz() {
+        if (!(socket instanceof SSLSocket)) {
+            writelnToControl("503 PBSZ requires a secure control connection.");
+            return;
+        }
+        protectionBufferSet = true;
+        writelnToControl("200 PBSZ=0");
+    }
+
+    /**
+     * Sets the data channel protection level, C for clear or P for private.
+     */
+    private void prot(String level) {
+        if (!protectionBufferSet) {
+            writelnToControl("503 PROT requires PBSZ first.");
+        } else if ("c".equalsIgnoreCase(level)) {
+            protectData = false;
+            writelnToControl("200 Protection level set to C.");
+        } else if ("p".equalsIgnoreCase(level)) {
+            protectData = true;
+            writelnToControl("200 Protection level set to P.");
+        } else if ("s".equalsIgnoreCase(level) || "e".equalsIgnoreCase(level)) {
+            writelnToControl("536 Protection level not supported.");
+        } else {
+            writelnToControl("504 Unknown protection level.");
+        }
+    }
+
+    /**
+     * Sets the offset the next RETR or STOR starts at.
+     * @param offset The offset in bytes.
+     */
+    private void rest(String offset) {
+        if (checkBasicAuth()) {
+            long parsed;
+            try {
+                parsed = Long.parseLong(offset);
+            } catch (NumberFormatException e) {
+                parsed = -1;
+            }
+            if (parsed < 0) {
+                writelnToControl("501 Invalid restart offset.");
+                return;
+            }
+            restartOffset = parsed;
+            writelnToControl("350 Restarting at " + parsed + ". Send STOR or RETR to continue.");
+        }
+    }
+
+    /**
+     * Sends the size of a file in bytes.
+     */
+    private void size(String path) {
+        if (checkBasicAuth()) {
+            File file = resolve(path);
+            if (file.isFile()) {
+                writelnToControl("213 " + file.length());
+            } else {
+                writelnToControl("550 Could not get file size.");
+            }
+        }
+    }
+
+    /**
+     * Sends the modification time of a file as YYYYMMDDHHMMSS in UTC.
+     */
+    private void mdtm(String path) {
+        if (checkBasicAuth()) {
+            File file = resolve(path);
+            if (file.isFile()) {
+                StringBuilder reply = new StringBuilder("213 ");
+                LogClock.appendDateTime(file.lastModified() / 1000, reply, false);
+                writelnToControl(reply.toString());
+            } else {
+                writelnToControl("550 Could not get file modification time.");
+            }
         }
-        b.close();
-        return result;
     }
 
+    /**
+     * Sends the facts for a single file over the control connection.
+     * @param path The file, or null for the working directory.
+     */
+    private void mlst(String path) {
+        if (checkBasicAuth()) {
+            File file = resolve(path);
+            StringBuilder facts = new StringBuilder(" ");
+            try {
+                DirectoryLister.appendFacts(file.toPath(), facts);
+            } catch (IOException e) {
+                writelnToControl("550 " + e.getMessage());
+                return;
+            }
+            facts.append(' ').append(file.getAbsolutePath());
+            writelnToControl("250-Listing " + file.getAbsolutePath());
+            writelnToControl(facts.toString());
+            writelnToControl("250 End");
+        }
+    }
+
+    /**
+     * Sets the transfer mode, S for plain streams or Z for deflate compressed streams.
+     */
+    private void mode(String mode) {
+        if ("s".equalsIgnoreCase(mode)) {
+            compressed = false;
+            writelnToControl("200 Mode set to S.");
+        } else if ("z".equalsIgnoreCase(mode)) {
+            compressed = true;
+            writelnToControl("200 Mode set to Z.");
+        } else {
+            writelnToControl("504 Unsupported transfer mode.");
+        }
+    }
+
+    /**
+     * Sets options for a command. RETR PARALLEL=n and MODE Z LEVEL n are supported.
+     * @param options The lower case command name and its options.
+     */
+    private void opts(String options) {
+        String levelPrefix = "mode z level ";
+        if (options != null && options.regionMatches(true, 0, levelPrefix, 0, levelPrefix.length())) {
+            int level;
+            try {
+                level = Integer.parseInt(options.substring(levelPrefix.length()).trim());
+            } catch (NumberFormatException e) {
+                level = -1;
+            }
+            if (level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION) {
+                writelnToControl("501 LEVEL must be between 1 and 9.");
+                return;
+            }
+            compressionLevel = level;
+            writelnToControl("200 MODE Z LEVEL set to " + level + ".");
+            return;
+        }
+
+        String prefix = "retr parallel=";
+        if (options == null || !options.regionMatches(true, 0, prefix, 0, prefix.length())) {
+            writelnToControl("501 Option not understood.");
+            return;
+        }
+        int streams;
+        try {
+            streams = Integer.parseInt(options.substring(prefix.length()).trim());
+        } catch (NumberFormatException e) {
+            streams = 0;
+        }
+        int max = config.getInt(Config.MAX_PARALLEL_STREAMS);
+        if (streams < 1 || streams > Math.max(1, max)) {
+            writelnToControl("501 PARALLEL must be between 1 and " + Math.max(1, max) + ".");
+            return;
+        }
+        parallelStreams = streams;
+        writelnToControl("200 PARALLEL=" + streams + ", RETR lists the range sent on each data connection in its 150 reply.");
+    }
+
+    /**
+     * Lists the extensions supported by the server.
+     */
+    private void feat() {
+        // Sessions driven by the nio event loop cannot upgrade the control connection, so cannot protect data either.
+        boolean tls = in != null;
+        writelnToControl("211-Features:");
+        if (tls) {
+            writelnToControl(" AUTH TLS");
+        }
+        writelnToControl(" EPRT");
+        writelnToControl(" EPSV");
+        writelnToControl(" MDTM");
+        writelnToControl(" MODE Z");
+        writelnToControl(" MLST type*;size*;modify*;perm*;");
+        if (config.getInt(Config.MAX_PARALLEL_STREAMS) > 1) {
+            writelnToControl(" PARALLEL");
+        }
+        if (tls) {
+            writelnToControl(" PBSZ");
+            writelnToControl(" PROT");
+        }
+        writelnToControl(" REST STREAM");
+        writelnToControl(" SIZE");
+        writelnToControl("211 End");
+    }
+
+    /**
+     * Resolves a path sent by the client against the working directory.
+     * @param path The path, or null for the working directory.
+     */
+    private File resolve(String path) {
+        if (path == null || path.isEmpty()) {
+            return directory;
+        }
+        File file = new File(path);
+        return file.isAbsolute() ? file : new File(directory, path);
+    }
+
+
     /**
      * Closes the data connections.
      */
     private void closeData() {
+        endTransfer();
+        openDataSockets.clear();
         try {
+            if (pendingDataSocket != null) {
+                pendingDataSocket.cancel(true);
+                pendingDataSocket = null;
+            }
+            if (dataTlsChannel != null) {
+                dataTlsChannel.close();
+                dataTlsChannel = null;
+            }
             if (dataChannelSocket != null) {
                 dataChannelSocket.close();
+                dataChannelSocket = null;
             }
-            if (dataChannel != null) {
-                dataChannel.close();
+            if (passivePort != null) {
+                passivePort.close();
+                passivePort = null;
             }
         }catch (IOException e) {
             logger.log("Unable to close data connections on quit. " + e.getMessage(), true);
         }
-        currentState = State.PASS;
+        if (currentState == State.DATA) {
+            currentState = State.PASS; // Must not log in a session that is not logged in yet.
+        }
     }
 
     /**
@@ -219,44 +1179,73 @@ public class SessionHandler implements Runnable {
 
         closeData();
         if (checkBasicAuth()) {
+            String address = null;
+            if (!useExtended) {
+                address = pasvAddress();
+                if (address == null) {
+                    writelnToControl("425 PASV needs an IPv4 address, use EPSV.");
+                    return;
+                }
+            }
+            dataMode = useExtended ? "EPSV" : "PASV";
             try {
-                dataChannel = new ServerSocket(0);
+                passivePort = passivePorts.reserve(socket.getInetAddress());
             } catch (IOException e) {
+                logger.log("Could not open new port on server. " + e.getMessage(), true);
+            }
+            if (passivePort == null) {
                 writelnToControl("425 Error opening new port on server");
-                logger.log("Could not open new port on server.", true);
                 return;
             }
-            int port = dataChannel.getLocalPort();
+            int port = passivePort.getPort();
 
-            String ipPortStr;
             if (!useExtended) {
-                byte[] ip = dataChannel.getInetAddress().getAddress();
-                ipPortStr = ip[0] + "," + ip[1] + "," + ip[2] + "," + ip[3] + "," +
-                        (port >>> (3 * 8)) + "," + (port >>> (4 * 8));
+                writelnToControl("227 Entering Passive Mode (" + address + (port >> 8) + "," + (port & 0xff) + ").");
             }else{
-                ipPortStr = "|||" + port + "|";
+                writelnToControl("229 Entering Extended Passive Mode (|||" + port + "|).");
             }
-            writelnToControl((useExtended?229:227) + " Entering " + (useExtended?"extended":"") + " Passive Mode (" + ipPortStr + ").");
-
-            // Run in new thread to avoid blocking connection port
-            new Thread(new Runnable() {
-                @Override
-                public void run() {
-                    try {
-                        if (!dataChannel.isClosed()) {
-                            dataChannelSocket = dataChannel.accept();
-                        }
-                    } catch (IOException e) {
-                        return;
-                    }
-                }
-            }).start();
 
+            // The shared acceptor completes this once the client connects.
+            pendingDataSocket = passivePort.accept();
 
             currentState = State.DATA;
         }
     }
 
+    /**
+     * @return The h1,h2,h3,h4, part of PASV replies: pasv_address if set, otherwise the local address of this
+     * control connection, so each interface advertises itself. Null if there is no IPv4 address to send.
+     */
+    private String pasvAddress() {
+        if (pasvAddress == null) {
+            InetAddress address = passivePorts.getAdvertisedAddress();
+            if (address == null) {
+                address = socket.getLocalAddress();
+            }
+            byte[] ip = address.getAddress();
+            if (address instanceof Inet6Address && isIPv4Mapped(ip)) {
+                ip = Arrays.copyOfRange(ip, 12, 16);
+            }
+            if (ip.length != 4) {
+                return null;
+            }
+            pasvAddress = (ip[0] & 0xff) + "," + (ip[1] & 0xff) + "," + (ip[2] & 0xff) + "," + (ip[3] & 0xff) + ",";
+        }
+        return pasvAddress;
+    }
+
+    private static boolean isIPv4Mapped(byte[] ip) {
+        if (ip.length != 16) {
+            return false;
+        }
+        for (int i = 0; i < 10; i++) {
+            if (ip[i] != 0) {
+                return false;
+            }
+        }
+        return ip[10] == (byte) 0xff && ip[11] == (byte) 0xff;
+    }
+
     /**
      * Start an extended port data transfer.
      * @param clientPath The locator string specified by the client
@@ -312,12 +1301,14 @@ public class SessionHandler implements Runnable {
             }
 
             try {
-                dataChannelSocket = new Socket(ip, port);
+                dataChannelSocket = SocketChannel.open(new InetSocketAddress(ip, port)).socket();
+                openDataSockets.add(dataChannelSocket);
             } catch (IOException e) {
                 logger.log("Could not open a socket at " + ip + ":" + port + ".", true);
                 return;
             }
 
+            dataMode = useExtended ? "EPRT" : "PORT";
             if (useExtended) {
                 writelnToControl("200 EPRT command successful. Consider using EPSV.");
             }else {
@@ -340,8 +1331,31 @@ public class SessionHandler implements Runnable {
             writelnToControl("425 Use PORT or PASV first.");
             return false;
         } else {
+            return awaitDataConnection();
+        }
+    }
+
+    /**
+     * Waits for the client to connect to the passive data port.
+     * @return False if the client never connected.
+     */
+    private boolean awaitDataConnection() {
+        if (pendingDataSocket == null) {
             return true;
         }
+        flushControl(); // A pipelining client may still need the PASV reply to connect.
+        try {
+            dataChannelSocket = pendingDataSocket.get(DATA_TIMEOUT, TimeUnit.MILLISECONDS);
+            openDataSockets.add(dataChannelSocket);
+            return true;
+        } catch (Exception e) {
+            logger.log("Client did not open the data connection. " + e.getMessage(), true);
+            writelnToControl("425 Can't open data connection.");
+            closeData();
+            return false;
+        } finally {
+            pendingDataSocket = null;
+        }
     }
 
     /**
@@ -410,7 +1424,42 @@ public class SessionHandler implements Runnable {
      * Sends a help message to the client.
      */
     private void help() {
-        writelnToControl("Valid Commands: USER, PASS, CWD, CDUP, QUIT, PASV, EPSV, PORT, EPRT, RETR, PWD, LIST, HELP");
+        StringBuilder valid = new StringBuilder("Valid Commands: ");
+        for (String verb : commands.getVerbs()) {
+            if (valid.length() > 16) {
+                valid.append(", ");
+            }
+            valid.append(verb);
+        }
+        writelnToControl(valid.toString());
+    }
+
+    /**
+     * Sends the status of the session and the server's metrics. Status of a file is not supported.
+     * @param argument Must be null.
+     */
+    private void stat(String argument) {
+        if (argument != null) {
+            writelnToControl("504 STAT of a file is not supported.");
+            return;
+        } else if (!checkBasicAuth()) {
+            return;
+        }
+        writelnToControl("211-Status of " + remoteHost + ":");
+        writelnToControl(" Logged in as " + username);
+        writelnToControl(" Control connection " + (socket instanceof SSLSocket ? "TLS" : "plain") +
+                ", data connections " + (protectData ? "TLS" : "plain") + (compressed ? ", MODE Z" : ""));
+        for (String metric : sessionMetrics.metrics.toStatusLines()) {
+            writelnToControl(" " + metric);
+        }
+        writelnToControl("211 End of status");
+    }
+
+    /**
+     * Every transfer is binary, so any type is accepted.
+     */
+    private void type() {
+        writelnToControl("200 Type set to I");
     }
 
     /**
@@ -434,11 +1483,16 @@ public class SessionHandler implements Runnable {
             return;
         }
 
-        if (validUsers.get(username).equals(pass)) {
+        if (!credentials.allowAttempt(remoteAddress)) {
+            logger.log("Refused login as " + username + " from " + remoteIP + " after too many failures.", true);
+            writelnToControl("530 Too many failed logins, try again later.");
+            currentState = State.USER;
+        } else if (credentials.verify(username, pass)) {
             writelnToControl("230 Password Accepted.");
             currentState = State.PASS;
             logger.log("User " + username + " is logged in.");
         }else{
+            credentials.recordFailure(remoteAddress);
             logger.log("User " + username + " entered an incorrect password.");
             writelnToControl("530 Login incorrect.");
             currentState = State.USER;
@@ -455,21 +1509,81 @@ public class SessionHandler implements Runnable {
     }
 
     /**
-     * Resets the timeout timer.
+     * Run when the session has been idle for too long.
      */
-    private void resetTimer() {
-        timoutTimer.cancel();
-        timoutTimer = new Timer();
-        timoutTimer.schedule(new TimeoutTask(), TIMEOUT);
+    private class TimeoutTask implements Runnable {
+        @Override
+        public void run() {
+            if (!transferring) {
+                timeOut();
+                return;
+            }
+            // The session thread is blocked in the transfer. Closing the data sockets makes it fail, and the
+            // session is then ended by dispatch once the transfer's reply is written.
+            logger.log("Aborting stalled transfer for " + username + " at " + remoteIP + ".", true);
+            stalled = true;
+            for (Socket dataSocket : openDataSockets) {
+                try {
+                    // Closing alone does not wake a thread blocked in sendfile, shutting the socket down does.
+                    dataSocket.shutdownInput();
+                    dataSocket.shutdownOutput();
+                } catch (IOException e) {
+                    // Already shut down or closed.
+                }
+                try {
+                    dataSocket.close();
+                } catch (IOException e) {
+                    // Closing is all that matters.
+                }
+            }
+        }
     }
 
     /**
-     * Run when the timeout occurs.
+     * Arms the idle deadline for a data transfer, including its TLS handshake. The transfer's throttle pushes
+     * the deadline back for every chunk moved, so only a transfer that stops moving expires it.
      */
-    private class TimeoutTask extends TimerTask {
-        @Override
-        public void run() {
-            running = true;
+    private void beginTransfer() {
+        transferring = true;
+        idleTimeout.reset();
+    }
+
+    /**
+     * Stops timing the data transfer, the rest of the command does not count as idle time.
+     */
+    private void endTransfer() {
+        if (transferring) {
+            idleTimeout.suspend();
+            transferring = false;
+        }
+    }
+
+    /**
+     * Tells the client the session timed out and ends it.
+     */
+    private void timeOut() {
+        logger.log("Closing idle session for " + username + " at " + remoteIP + ".");
+        running = false;
+        writelnToControl("421 Timeout.");
+        flushControl();
+        // Ends the read loop, which then cleans up the session as if the client had left.
+        try {
+            socket.shutdownInput();
+        } catch (IOException e) {
+            closeSocket();
+        } catch (UnsupportedOperationException e) {
+            closeSocket(); // SSL sockets do not support half closing.
+        }
+    }
+
+    /**
+     * Closes the control connection.
+     */
+    private void closeSocket() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            logger.log("Unable to close control connection. " + e.getMessage(), true);
         }
     }
 
@@ -482,19 +1596,40 @@ public class SessionHandler implements Runnable {
     }
 
     /**
-     * Writes a string to the client.
+     * Writes a string to the client. It is sent on the next flushControl.
      * @param msg
      */
     private void writeToControl(String msg) {
         try {
             logger.log("Sending \"" + msg.replace("\n", "") + "\" to " + username + ".");
             out.write(msg);
+        } catch (IOException e) {
+            logger.log("Unable to write to: " + socket.toString() + "\n\t" + e.getMessage(), true);
+        }
+    }
+
+    /**
+     * Sends every reply written so far in one write.
+     */
+    private void flushControl() {
+        try {
             out.flush();
         } catch (IOException e) {
             logger.log("Unable to write to: " + socket.toString() + "\n\t" + e.getMessage(), true);
         }
     }
 
+    /**
+     * @return True if the client has already sent another complete line.
+     */
+    private boolean hasPipelinedLine() {
+        try {
+            return running && in.hasLine();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
     /**
      * Reads a line from the client.
      * @return
@@ -0,0 +1,131 @@
+package com.cs472;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Paces one transfer against the token buckets that apply to it, such as the global, per address and per user
+ * limits. Each chunk takes its bytes from every bucket and waits for the slowest, so a transfer never goes
+ * faster than its tightest limit. Because buckets are shared and refilled in arrival order, concurrent
+ * transfers under the same limit take turns chunk by chunk and get a fair share. The chunk size follows the
+ * buckets' current rates, so a transfer picks up limits reloaded while it runs.
+ */
+public class Throttle {
+    private static final int MIN_CHUNK = 4 * 1024;
+    private static final int MAX_CHUNK = 1024 * 1024; // Small enough to show progress often on slow links.
+    private static final int CHUNKS_PER_SECOND = 20; // Smaller chunks share a limit more evenly.
+
+    public static final Throttle UNLIMITED = new Throttle(new TokenBucket[0], null);
+
+    private final TokenBucket[] buckets;
+    private final Runnable progress;
+
+    /**
+     * @param progress Run before every chunk, once the previous one has been moved, may be null.
+     */
+    Throttle(TokenBucket[] buckets, Runnable progress) {
+        this.buckets = buckets;
+        this.progress = progress;
+    }
+
+    /**
+     * @return The most bytes to move between calls to acquire, based on the lowest rate among the buckets.
+     */
+    public int chunkSize() {
+        double lowestRate = 0;
+        for (TokenBucket bucket : buckets) {
+            double rate = bucket.getRate();
+            if (rate > 0 && (lowestRate == 0 || rate < lowestRate)) {
+                lowestRate = rate;
+            }
+        }
+        return lowestRate > 0
+                ? (int) Math.max(MIN_CHUNK, Math.min(MAX_CHUNK, lowestRate / CHUNKS_PER_SECOND)) : MAX_CHUNK;
+    }
+
+    /**
+     * Ends the transfer's use of its buckets, must be called once the transfer is over.
+     */
+    public void release() {
+    }
+
+    /**
+     * Takes bytes from every bucket, and waits until all of them allow the bytes to be sent.
+     */
+    public void acquire(long bytes) {
+        if (progress != null) {
+            progress.run();
+        }
+        long wait = 0;
+        for (TokenBucket bucket : buckets) {
+            wait = Math.max(wait, bucket.reserve(bytes));
+        }
+        long deadline = System.nanoTime() + wait;
+        while (wait > 0) {
+            LockSupport.parkNanos(wait);
+            if (Thread.currentThread().isInterrupted()) {
+                return;
+            }
+            wait = deadline - System.nanoTime();
+        }
+    }
+
+    /**
+     * @return The stream, paced by this throttle.
+     */
+    public OutputStream wrap(OutputStream out) {
+        if (buckets.length == 0) {
+            return out;
+        }
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+                acquire(1);
+                out.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                while (len > 0) {
+                    int chunk = Math.min(len, chunkSize());
+                    acquire(chunk);
+                    out.write(b, off, chunk);
+                    off += chunk;
+                    len -= chunk;
+                }
+            }
+        };
+    }
+
+    /**
+     * @return The stream, paced by this throttle.
+     */
+    public InputStream wrap(InputStream in) {
+        if (buckets.length == 0) {
+            return in;
+        }
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int b = in.read();
+                if (b >= 0) {
+                    acquire(1);
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int read = in.read(b, off, Math.min(len, chunkSize()));
+                if (read > 0) {
+                    acquire(read);
+                }
+                return read;
+            }
+        };
+    }
+}
@@ -0,0 +1,131 @@
+package com.cs472;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A hashed timing wheel that tracks idle deadlines for every session on one thread.
+ * Resetting a deadline only stores a new value in the session's Timeout, the wheel notices when it reaches
+ * the entry's old slot and moves it, so resets never lock or allocate.
+ */
+public class TimingWheel {
+    private static final int WHEEL_SIZE = 512;
+
+    private final long tickMillis;
+    private final Executor expiryExecutor;
+    private final Timeout[] slots = new Timeout[WHEEL_SIZE]; // Heads of singly linked lists, only used by the wheel thread.
+    private final Queue<Timeout> added = new ConcurrentLinkedQueue<Timeout>();
+    private volatile long currentTick = 0;
+
+    /**
+     * @param scheduler Drives the wheel, all list manipulation happens on its thread.
+     * @param expiryExecutor Runs the expiry callbacks so they cannot stall the wheel.
+     * @param tickMillis The resolution of the wheel.
+     */
+    public TimingWheel(ScheduledExecutorService scheduler, Executor expiryExecutor, long tickMillis) {
+        this.tickMillis = tickMillis;
+        this.expiryExecutor = expiryExecutor;
+        scheduler.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                tick();
+            }
+        }, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Starts tracking a new deadline, this is the only call that allocates.
+     * @param timeoutMillis How long the owner may stay idle.
+     * @param onExpire Run once if the deadline passes without a reset.
+     */
+    public Timeout register(long timeoutMillis, Runnable onExpire) {
+        Timeout timeout = new Timeout(this, Math.max(1, timeoutMillis / tickMillis), onExpire);
+        timeout.reset();
+        added.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * Advances the wheel by one slot, expiring or moving every entry in it.
+     */
+    private void tick() {
+        Timeout timeout;
+        while ((timeout = added.poll()) != null) {
+            link(timeout, timeout.deadline);
+        }
+
+        long now = currentTick + 1;
+        currentTick = now;
+
+        // Detach the slot first, entries may be linked back into it for a later turn.
+        int slot = (int) (now % WHEEL_SIZE);
+        Timeout entry = slots[slot];
+        slots[slot] = null;
+        while (entry != null) {
+            Timeout next = entry.next;
+            entry.next = null;
+            Runnable onExpire = entry.onExpire;
+            if (onExpire != null) { // Cancelled entries are dropped here.
+                if (entry.suspended) {
+                    link(entry, now + entry.durationTicks);
+                } else if (entry.deadline <= now) {
+                    entry.cancel();
+                    expiryExecutor.execute(onExpire);
+                } else {
+                    link(entry, entry.deadline);
+                }
+            }
+            entry = next;
+        }
+    }
+
+    private void link(Timeout timeout, long deadline) {
+        int slot = (int) (Math.max(deadline, currentTick + 1) % WHEEL_SIZE);
+        timeout.next = slots[slot];
+        slots[slot] = timeout;
+    }
+
+    /**
+     * One tracked deadline, owned by a single session.
+     */
+    public static class Timeout {
+        private final TimingWheel wheel;
+        private final long durationTicks;
+        // Null once cancelled, so an entry still linked in its slot does not keep the owner reachable.
+        private volatile Runnable onExpire;
+        private volatile long deadline;
+        private volatile boolean suspended = false;
+        private Timeout next = null; // Only touched by the wheel thread.
+
+        private Timeout(TimingWheel wheel, long durationTicks, Runnable onExpire) {
+            this.wheel = wheel;
+            this.durationTicks = durationTicks;
+            this.onExpire = onExpire;
+        }
+
+        /**
+         * Pushes the deadline back to a full timeout from now.
+         */
+        public void reset() {
+            deadline = wheel.currentTick + durationTicks;
+            suspended = false;
+        }
+
+        /**
+         * Stops the deadline from expiring until the next reset, used while a command is running.
+         */
+        public void suspend() {
+            suspended = true;
+        }
+
+        /**
+         * Stops tracking this deadline for good.
+         */
+        public void cancel() {
+            onExpire = null;
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package com.cs472;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * The sending side of a TLS connection, driven with an SSLEngine over a blocking socket channel. Unlike an
+ * SSLSocket, which copies everything through heap arrays, data is encrypted straight from the caller's buffer,
+ * such as a mapped file, into a pooled direct buffer. Created by TlsContext.
+ */
+public class TlsChannel implements WritableByteChannel {
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final SocketChannel channel;
+    private final SSLEngine engine;
+    private final ByteBuffer netIn = BufferPool.acquire();
+    private final ByteBuffer netOut = BufferPool.acquire();
+    private final ByteBuffer appIn = BufferPool.acquire(); // Whatever the client sends is discarded.
+    private boolean open = true;
+
+    TlsChannel(SocketChannel channel, SSLEngine engine) {
+        this.channel = channel;
+        this.engine = engine;
+    }
+
+    /**
+     * Runs the handshake to completion.
+     */
+    void handshake() throws IOException {
+        engine.beginHandshake();
+        handshake(engine.getHandshakeStatus());
+    }
+
+    private void handshake(SSLEngineResult.HandshakeStatus status) throws IOException {
+        while (true) {
+            switch (status) {
+                case NEED_TASK:
+                    Runnable task;
+                    while ((task = engine.getDelegatedTask()) != null) {
+                        task.run();
+                    }
+                    status = engine.getHandshakeStatus();
+                    break;
+                case NEED_WRAP:
+                    status = wrap(EMPTY).getHandshakeStatus();
+                    break;
+                case NEED_UNWRAP:
+                case NEED_UNWRAP_AGAIN:
+                    status = unwrap();
+                    break;
+                default:
+                    return;
+            }
+        }
+    }
+
+    /**
+     * Encrypts and sends all of src.
+     * @return The number of bytes of src sent.
+     */
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+        int start = src.position();
+        while (src.hasRemaining()) {
+            SSLEngineResult result = wrap(src);
+            if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                throw new ClosedChannelException();
+            } else if (result.bytesConsumed() == 0 && result.bytesProduced() == 0) {
+                SSLEngineResult.HandshakeStatus status = result.getHandshakeStatus();
+                if (status == SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING || status == SSLEngineResult.HandshakeStatus.FINISHED) {
+                    throw new IOException("TLS engine made no progress.");
+                }
+                handshake(status); // The engine needs to talk to the client first.
+            }
+        }
+        return src.position() - start;
+    }
+
+    private SSLEngineResult wrap(ByteBuffer src) throws IOException {
+        netOut.clear();
+        SSLEngineResult result = engine.wrap(src, netOut);
+        if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+            throw new IOException("TLS record larger than " + netOut.capacity() + " bytes.");
+        }
+        netOut.flip();
+        while (netOut.hasRemaining()) {
+            channel.write(netOut);
+        }
+        return result;
+    }
+
+    private SSLEngineResult.HandshakeStatus unwrap() throws IOException {
+        while (true) {
+            netIn.flip();
+            SSLEngineResult result = engine.unwrap(netIn, appIn);
+            netIn.compact();
+            appIn.clear();
+            switch (result.getStatus()) {
+                case BUFFER_UNDERFLOW:
+                    if (channel.read(netIn) < 0) {
+                        throw new EOFException("Connection closed during the TLS handshake.");
+                    }
+                    break;
+                case CLOSED:
+                    throw new EOFException("Connection closed during the TLS handshake.");
+                case BUFFER_OVERFLOW:
+                    throw new IOException("TLS record larger than " + appIn.capacity() + " bytes.");
+                default:
+                    return result.getHandshakeStatus();
+            }
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open && channel.isOpen();
+    }
+
+    /**
+     * Sends close_notify and closes the connection.
+     */
+    @Override
+    public void close() throws IOException {
+        if (!open) {
+            return;
+        }
+        open = false;
+        try {
+            engine.closeOutbound();
+            while (!engine.isOutboundDone() && channel.isOpen()) {
+                wrap(EMPTY);
+            }
+        } catch (IOException e) {
+            // The client may already be gone, the connection is closed either way.
+        } finally {
+            channel.close();
+            BufferPool.release(netIn);
+            BufferPool.release(netOut);
+            BufferPool.release(appIn);
+        }
+    }
+}
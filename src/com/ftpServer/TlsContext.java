@@ -0,0 +1,190 @@
+package com.cs472;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import java.io.File;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The TLS configuration shared by the implicit TLS port, AUTH TLS upgrades and protected data connections.
+ * Sessions are cached and resumable through session tickets, so reconnects and data connections can skip the
+ * full handshake. Handshake times and how many handshakes were resumed are tracked for monitoring.
+ */
+public class TlsContext {
+    private final Logger logger;
+    private final SSLContext context;
+    private final SSLParameters parameters;
+
+    private final AtomicLong handshakes = new AtomicLong();
+    private final AtomicLong resumed = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final Metrics.Histogram handshakeTimes;
+
+    /**
+     * Loads the keystore and builds the SSLContext. If the keystore cannot be loaded the JVM default context
+     * is used, which reads the standard javax.net.ssl system properties.
+     * @param metrics Where handshake times are recorded.
+     */
+    public TlsContext(Config config, Logger logger, Metrics metrics) {
+        this.logger = logger;
+        this.handshakeTimes = metrics.histogram("ftp_tls_handshake_seconds", "", "Time taken by completed TLS handshakes.");
+        // Read by the JDK when the first server context is created. Set either way, as newer JDKs default to true.
+        System.setProperty("jdk.tls.server.enableSessionTicketExtension",
+                String.valueOf(config.getBoolean(Config.TLS_SESSION_TICKETS)));
+
+        SSLContext sslContext;
+        try {
+            sslContext = load(config);
+        } catch (Exception e) {
+            logger.log("Could not load the keystore " + config.getString(Config.KEYSTORE) + ", using the default SSL context. " + e.getMessage(), true);
+            try {
+                sslContext = SSLContext.getDefault();
+            } catch (GeneralSecurityException ex) {
+                throw new IllegalStateException("No SSL context is available.", ex);
+            }
+        }
+        context = sslContext;
+
+        SSLSessionContext sessions = context.getServerSessionContext();
+        sessions.setSessionCacheSize(config.getInt(Config.TLS_SESSION_CACHE_SIZE));
+        sessions.setSessionTimeout(config.getInt(Config.TLS_SESSION_TIMEOUT));
+
+        SSLParameters supported = context.getSupportedSSLParameters();
+        parameters = context.getDefaultSSLParameters();
+        parameters.setProtocols(allowed(config.getString(Config.TLS_PROTOCOLS), supported.getProtocols()));
+        parameters.setCipherSuites(allowed(config.getString(Config.TLS_CIPHERS), supported.getCipherSuites()));
+        parameters.setUseCipherSuitesOrder(true);
+        logger.log("TLS protocols " + Arrays.toString(parameters.getProtocols()) + ", ciphers " + Arrays.toString(parameters.getCipherSuites()));
+    }
+
+    private static SSLContext load(Config config) throws IOException, GeneralSecurityException {
+        char[] password = config.getString(Config.KEYSTORE_PASSWORD).toCharArray();
+        KeyStore keyStore = KeyStore.getInstance(new File(config.getString(Config.KEYSTORE)), password);
+        KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagers.init(keyStore, password);
+        SSLContext sslContext = SSLContext.getInstance("TLS");
+        sslContext.init(keyManagers.getKeyManagers(), null, null);
+        return sslContext;
+    }
+
+    /**
+     * @return The entries of a comma separated allow-list that are supported, in the order of the list.
+     */
+    private static String[] allowed(String allowList, String[] supported) {
+        List<String> supportedList = Arrays.asList(supported);
+        List<String> result = new ArrayList<String>();
+        for (String name : allowList.split(",")) {
+            name = name.trim();
+            if (supportedList.contains(name)) {
+                result.add(name);
+            }
+        }
+        return result.isEmpty() ? supported : result.toArray(new String[result.size()]);
+    }
+
+    /**
+     * Opens the implicit TLS control port.
+     */
+    public SSLServerSocket createServerSocket(int port) throws IOException {
+        SSLServerSocket serverSocket = (SSLServerSocket) context.getServerSocketFactory().createServerSocket(port);
+        serverSocket.setSSLParameters(parameters);
+        return serverSocket;
+    }
+
+    /**
+     * Starts server side TLS on an already connected socket and completes the handshake.
+     * @param channel Describes the connection in the log, such as "control" or "data".
+     */
+    public SSLSocket wrap(Socket socket, String channel) throws IOException {
+        SSLSocket sslSocket = (SSLSocket) context.getSocketFactory().createSocket(
+                socket, socket.getInetAddress().getHostAddress(), socket.getPort(), true);
+        sslSocket.setSSLParameters(parameters);
+        sslSocket.setUseClientMode(false);
+        handshake(sslSocket, channel);
+        return sslSocket;
+    }
+
+    /**
+     * Starts server side TLS on an already connected socket channel, for TlsChannel.
+     */
+    public TlsChannel wrap(SocketChannel channel, String name) throws IOException {
+        Socket socket = channel.socket();
+        SSLEngine engine = context.createSSLEngine(socket.getInetAddress().getHostAddress(), socket.getPort());
+        engine.setSSLParameters(parameters);
+        engine.setUseClientMode(false);
+        TlsChannel secure = new TlsChannel(channel, engine);
+        long startMillis = System.currentTimeMillis();
+        long start = System.nanoTime();
+        try {
+            secure.handshake();
+        } catch (IOException e) {
+            failures.incrementAndGet();
+            secure.close();
+            throw e;
+        }
+        record(engine.getSession(), socket, name, startMillis, System.nanoTime() - start);
+        return secure;
+    }
+
+    /**
+     * Completes the handshake of a TLS socket and records how long it took and whether the session was resumed.
+     */
+    public void handshake(SSLSocket socket, String channel) throws IOException {
+        long startMillis = System.currentTimeMillis();
+        long start = System.nanoTime();
+        try {
+            socket.startHandshake();
+        } catch (IOException e) {
+            failures.incrementAndGet();
+            throw e;
+        }
+        record(socket.getSession(), socket, channel, startMillis, System.nanoTime() - start);
+    }
+
+    private void record(SSLSession session, Socket socket, String channel, long startMillis, long nanos) {
+        handshakeTimes.record(nanos);
+        long total = handshakes.incrementAndGet();
+
+        // A resumed session keeps the creation time of the handshake that first established it.
+        boolean wasResumed = session.getCreationTime() < startMillis;
+        long resumedTotal = wasResumed ? resumed.incrementAndGet() : resumed.get();
+        logger.log("TLS " + channel + " handshake with " + socket.getInetAddress().getHostAddress() + " took " +
+                (nanos / 1000) + " us using " + session.getProtocol() + " " + session.getCipherSuite() +
+                (wasResumed ? ", resumed" : ", full") + ". " + resumedTotal + " of " + total + " handshakes resumed.");
+    }
+
+    /**
+     * @return The number of completed handshakes.
+     */
+    public long getHandshakes() {
+        return handshakes.get();
+    }
+
+    /**
+     * @return The number of completed handshakes that resumed a cached session.
+     */
+    public long getResumedHandshakes() {
+        return resumed.get();
+    }
+
+    /**
+     * @return The number of handshakes that failed.
+     */
+    public long getFailedHandshakes() {
+        return failures.get();
+    }
+}
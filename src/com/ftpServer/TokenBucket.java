@@ -0,0 +1,88 @@
+package com.cs472;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A lock-free token bucket, kept as the time at which the bucket will next be full (the generic cell rate
+ * algorithm). Taking permits is a single compare-and-set, so any number of threads can share a bucket.
+ * The rate can be changed while the bucket is in use, a rate of 0 means unlimited.
+ */
+public class TokenBucket {
+    private volatile double nanosPerPermit;
+    private volatile long burstNanos;
+    private final AtomicLong fullAt; // System.nanoTime() at which every permit is available again.
+
+    /**
+     * @param permitsPerSecond The rate permits are refilled at, 0 for no limit.
+     * @param burst The most permits that can be taken at once after the bucket has been idle.
+     */
+    public TokenBucket(double permitsPerSecond, long burst) {
+        setRate(permitsPerSecond, burst);
+        this.fullAt = new AtomicLong(System.nanoTime());
+    }
+
+    /**
+     * Changes the rate, permits already taken are not affected.
+     */
+    public void setRate(double permitsPerSecond, long burst) {
+        double nanos = permitsPerSecond > 0 ? 1000000000.0 / permitsPerSecond : 0;
+        burstNanos = (long) (Math.max(1, burst) * nanos);
+        nanosPerPermit = nanos;
+    }
+
+    /**
+     * @return The rate permits are refilled at per second, 0 for no limit.
+     */
+    public double getRate() {
+        double nanos = nanosPerPermit;
+        return nanos > 0 ? 1000000000.0 / nanos : 0;
+    }
+
+    /**
+     * Takes permits if they are available now.
+     * @return False if there are not enough permits, nothing is taken then.
+     */
+    public boolean tryAcquire(long permits) {
+        double cost = nanosPerPermit;
+        if (cost == 0) {
+            return true;
+        }
+        long now = System.nanoTime();
+        while (true) {
+            long current = fullAt.get();
+            long next = Math.max(current, now) + (long) (permits * cost);
+            if (next - now > burstNanos) {
+                return false;
+            }
+            if (fullAt.compareAndSet(current, next)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Takes permits whether or not they are available yet, going into debt if needed.
+     * @return How many nanoseconds the caller should wait before using the permits, 0 to go ahead now.
+     */
+    public long reserve(long permits) {
+        double cost = nanosPerPermit;
+        if (cost == 0) {
+            return 0;
+        }
+        long now = System.nanoTime();
+        while (true) {
+            long current = fullAt.get();
+            long next = Math.max(current, now) + (long) (permits * cost);
+            if (fullAt.compareAndSet(current, next)) {
+                return Math.max(0, next - now - burstNanos);
+            }
+        }
+    }
+
+    /**
+     * @return True if the bucket has been full for at least idleNanos, it can then be replaced by a new bucket.
+     */
+    public boolean isIdle(long idleNanos) {
+        return System.nanoTime() - fullAt.get() >= idleNanos;
+    }
+}
@@ -0,0 +1,242 @@
+package com.cs472;
+
+import javax.net.ssl.SSLSocket;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Streams files onto and off data connections using a constant amount of memory per transfer.
+ * Every transfer is paced by a Throttle, which takes its bytes from the bandwidth limits one chunk at a time.
+ */
+public class TransferEngine {
+    /**
+     * Sends the contents of source, starting at position, to the socket.
+     * Plain sockets backed by a channel use sendfile, everything else is copied through a pooled buffer.
+     * @return The number of bytes sent.
+     */
+    public static long send(FileChannel source, long position, Socket socket, Throttle throttle) throws IOException {
+        return send(source, position, Long.MAX_VALUE, socket, throttle);
+    }
+
+    /**
+     * Sends up to count bytes of source, starting at position, to the socket.
+     * Only positional reads are used, so several threads can send different ranges of one channel at once.
+     * @return The number of bytes sent.
+     */
+    public static long send(FileChannel source, long position, long count, Socket socket, Throttle throttle) throws IOException {
+        long end = position + Math.min(count, Math.max(0, source.size() - position));
+        SocketChannel channel = socket.getChannel();
+        if (channel != null && !(socket instanceof SSLSocket)) {
+            return transfer(source, position, end, channel, throttle);
+        }
+        OutputStream out = socket.getOutputStream();
+        long sent = copy(source, position, end, Channels.newChannel(out), throttle);
+        out.flush();
+        return sent;
+    }
+
+    /**
+     * Sends data that is already in memory, such as a cached file, starting at position.
+     * Plain sockets are written straight from the buffer.
+     * @return The number of bytes sent.
+     */
+    public static long send(ByteBuffer data, long position, Socket socket, Throttle throttle) throws IOException {
+        SocketChannel channel = socket.getChannel();
+        if (channel != null && !(socket instanceof SSLSocket)) {
+            return send(data, position, channel, throttle);
+        }
+        OutputStream out = socket.getOutputStream();
+        long sent = send(data, position, Channels.newChannel(out), throttle);
+        out.flush();
+        return sent;
+    }
+
+    /**
+     * Sends data that is already in memory, starting at position, to a channel such as a TlsChannel.
+     * @return The number of bytes sent.
+     */
+    public static long send(ByteBuffer data, long position, WritableByteChannel target, Throttle throttle) throws IOException {
+        data.position((int) Math.min(position, data.limit()));
+        int end = data.limit();
+        long sent = 0;
+        while (data.position() < end) {
+            int count = Math.min(end - data.position(), throttle.chunkSize());
+            throttle.acquire(count);
+            data.limit(data.position() + count);
+            while (data.hasRemaining()) {
+                sent += target.write(data);
+            }
+            data.limit(end);
+        }
+        return sent;
+    }
+
+    /**
+     * Sends a file from position through shared memory mappings, so the file is never copied onto the heap.
+     * @return The number of bytes sent.
+     */
+    public static long sendMapped(MappedFiles mappedFiles, File file, long position, WritableByteChannel target,
+                                  Throttle throttle) throws IOException {
+        long length = file.length();
+        long modified = file.lastModified();
+        long sent = 0;
+        while (position + sent < length) {
+            long windowStart = (position + sent) / MappedFiles.WINDOW * MappedFiles.WINDOW;
+            MappedFiles.Mapping mapping = mappedFiles.acquire(file, windowStart, length, modified);
+            try {
+                sent += send(mapping.getData(), position + sent - windowStart, target, throttle);
+            } catch (InternalError e) {
+                // Reading a mapping past the end of a file that has been truncated faults.
+                throw new IOException("File was truncated while sending.", e);
+            } finally {
+                mappedFiles.release(mapping);
+            }
+        }
+        return sent;
+    }
+
+    /**
+     * Sends the contents of source, starting at position, to the socket as a zlib stream for MODE Z.
+     * The compressed bytes are what is throttled.
+     * @return The number of uncompressed bytes sent.
+     */
+    public static long sendDeflated(FileChannel source, long position, Socket socket, Deflater deflater, Throttle throttle) throws IOException {
+        DeflaterOutputStream out = new DeflaterOutputStream(throttle.wrap(socket.getOutputStream()), deflater, BufferPool.BUFFER_SIZE);
+        long sent = copy(source, position, source.size(), Channels.newChannel(out), Throttle.UNLIMITED);
+        out.finish();
+        out.flush();
+        return sent;
+    }
+
+    /**
+     * Sends the file using FileChannel.transferTo, letting the kernel move the bytes.
+     */
+    private static long transfer(FileChannel source, long position, long end, WritableByteChannel target, Throttle throttle) throws IOException {
+        long sent = 0;
+        while (position + sent < end) {
+            long count = Math.min(end - position - sent, throttle.chunkSize());
+            throttle.acquire(count);
+            long written = source.transferTo(position + sent, count, target);
+            if (written <= 0) {
+                break; // File was truncated while sending.
+            }
+            sent += written;
+        }
+        return sent;
+    }
+
+    /**
+     * Sends the file by reading it into a pooled direct buffer one chunk at a time.
+     */
+    private static long copy(FileChannel source, long position, long end, WritableByteChannel target, Throttle throttle) throws IOException {
+        ByteBuffer buffer = BufferPool.acquire();
+        long sent = 0;
+        try {
+            int read;
+            while (position + sent < end) {
+                buffer.limit((int) Math.min(Math.min(buffer.capacity(), throttle.chunkSize()), end - position - sent));
+                if ((read = source.read(buffer, position + sent)) <= 0) {
+                    break; // File was truncated while sending.
+                }
+                throttle.acquire(read);
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    target.write(buffer);
+                }
+                buffer.clear();
+                sent += read;
+            }
+        } finally {
+            BufferPool.release(buffer);
+        }
+        return sent;
+    }
+
+    /**
+     * Receives everything the client sends on the socket into target, starting at position.
+     * Plain sockets backed by a channel use transferFrom, everything else is copied through a pooled buffer.
+     * @param syncBytes Force the received data to disk every this many bytes, 0 to leave it to the caller.
+     * @return The number of bytes received.
+     */
+    public static long receive(Socket socket, FileChannel target, long position, long syncBytes, Throttle throttle) throws IOException {
+        SocketChannel channel = socket.getChannel();
+        if (channel != null && !(socket instanceof SSLSocket)) {
+            return transferIn(channel, target, position, syncBytes, throttle);
+        }
+        InputStream in = throttle.wrap(socket.getInputStream());
+        return copyIn(Channels.newChannel(in), target, position, syncBytes);
+    }
+
+    /**
+     * Receives a MODE Z zlib stream from the socket and writes the inflated data into target, starting at position.
+     * @return The number of uncompressed bytes received.
+     */
+    public static long receiveInflated(Socket socket, FileChannel target, long position, long syncBytes, Inflater inflater,
+                                       Throttle throttle) throws IOException {
+        InputStream in = new InflaterInputStream(throttle.wrap(socket.getInputStream()), inflater, BufferPool.BUFFER_SIZE);
+        return copyIn(Channels.newChannel(in), target, position, syncBytes);
+    }
+
+    /**
+     * Receives the file using FileChannel.transferFrom.
+     */
+    private static long transferIn(ReadableByteChannel source, FileChannel target, long position, long syncBytes,
+                                   Throttle throttle) throws IOException {
+        long received = 0;
+        long unsynced = 0;
+        while (true) {
+            long count = syncBytes > 0 ? Math.min(throttle.chunkSize(), syncBytes - unsynced) : throttle.chunkSize();
+            long read = target.transferFrom(source, position + received, count);
+            if (read <= 0) {
+                break; // A blocking socket only transfers nothing at the end of the stream.
+            }
+            throttle.acquire(read);
+            received += read;
+            unsynced += read;
+            if (syncBytes > 0 && unsynced >= syncBytes) {
+                target.force(false);
+                unsynced = 0;
+            }
+        }
+        return received;
+    }
+
+    /**
+     * Receives the file through a pooled direct buffer one chunk at a time.
+     */
+    private static long copyIn(ReadableByteChannel source, FileChannel target, long position, long syncBytes) throws IOException {
+        ByteBuffer buffer = BufferPool.acquire();
+        long received = 0;
+        long unsynced = 0;
+        try {
+            while (source.read(buffer) >= 0) {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    received += target.write(buffer, position + received);
+                }
+                unsynced += buffer.limit();
+                buffer.clear();
+                if (syncBytes > 0 && unsynced >= syncBytes) {
+                    target.force(false);
+                    unsynced = 0;
+                }
+            }
+        } finally {
+            BufferPool.release(buffer);
+        }
+        return received;
+    }
+}
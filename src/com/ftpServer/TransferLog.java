@@ -0,0 +1,187 @@
+package com.cs472;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Records one structured line per completed transfer, for capacity planning.
+ * Lines can be written in the wu-ftpd xferlog format, as JSON lines, or both. Each line is built in a
+ * reused per-thread buffer and written with a single call, so logging adds almost nothing to a transfer.
+ */
+public class TransferLog {
+    private static final int WRITE_BUFFER_SIZE = 8 * 1024;
+
+    private final Writer xferlog;
+    private final Writer json;
+
+    // Formatting the xferlog time is cached per second.
+    private final SimpleDateFormat dateFormat = new SimpleDateFormat("EEE MMM dd HH:mm:ss yyyy", Locale.US);
+    private long cachedSecond = -1;
+    private String cachedDate;
+
+    private static final ThreadLocal<StringBuilder> lines = new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder(256);
+        }
+    };
+
+    /**
+     * Opens the transfer logs selected by the transfer_log setting in the log directory.
+     */
+    public TransferLog(Config config) throws IOException {
+        String format = config.getString(Config.TRANSFER_LOG).toLowerCase();
+        String logDirectory = config.getString(Config.LOG_DIRECTORY);
+        logDirectory = logDirectory + (logDirectory.endsWith(File.separator)?"":File.separator);
+        int numFiles = config.getInt(Config.NUM_LOG_FILES);
+        long maxBytes = config.getInt(Config.LOG_MAX_SIZE);
+        long interval = config.getInt(Config.LOG_ROTATE_INTERVAL) * 1000L;
+
+        boolean both = format.equals("both");
+        xferlog = both || format.equals("xferlog")
+                ? new RotatingLogFile(logDirectory + "xferlog", numFiles, maxBytes, interval, false, WRITE_BUFFER_SIZE) : null;
+        json = both || format.equals("json")
+                ? new RotatingLogFile(logDirectory + "xferlog.jsonl", numFiles, maxBytes, interval, false, WRITE_BUFFER_SIZE) : null;
+    }
+
+    /**
+     * Creates a transfer log that records nothing.
+     */
+    public TransferLog() {
+        xferlog = null;
+        json = null;
+    }
+
+    /**
+     * @return False if no transfer log is enabled, callers can skip gathering details.
+     */
+    public boolean isEnabled() {
+        return xferlog != null || json != null;
+    }
+
+    /**
+     * Records a finished transfer.
+     * @param command The FTP command, such as RETR or LIST.
+     * @param outgoing True for transfers from the server to the client.
+     * @param dataMode How the data connection was opened: PASV, EPSV, PORT or EPRT.
+     * @param complete False if the transfer failed part way.
+     */
+    public void record(String user, String remoteHost, String command, String path, boolean outgoing, long bytes,
+                       long durationNanos, String dataMode, boolean tls, boolean complete) {
+        if (!isEnabled()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        StringBuilder line = lines.get();
+        try {
+            if (xferlog != null) {
+                line.setLength(0);
+                appendXferlog(line, now, user, remoteHost, path, outgoing, bytes, durationNanos, complete);
+                write(xferlog, line);
+            }
+            if (json != null) {
+                line.setLength(0);
+                appendJson(line, now, user, remoteHost, command, path, outgoing, bytes, durationNanos, dataMode, tls, complete);
+                write(json, line);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Flushes and closes the transfer logs.
+     */
+    public void close() throws IOException {
+        if (xferlog != null) {
+            synchronized (xferlog) {
+                xferlog.close();
+            }
+        }
+        if (json != null) {
+            synchronized (json) {
+                json.close();
+            }
+        }
+    }
+
+    private static void write(Writer writer, StringBuilder line) throws IOException {
+        synchronized (writer) {
+            writer.append(line);
+            writer.flush();
+        }
+    }
+
+    /**
+     * current-time transfer-time remote-host file-size filename transfer-type special-action-flag direction
+     * access-mode username service-name authentication-method authenticated-user-id completion-status
+     */
+    private void appendXferlog(StringBuilder line, long now, String user, String remoteHost, String path,
+                               boolean outgoing, long bytes, long durationNanos, boolean complete) {
+        line.append(formatDate(now)).append(' ');
+        line.append(Math.max(1, (durationNanos + 500000000L) / 1000000000L)).append(' ');
+        line.append(remoteHost).append(' ');
+        line.append(bytes).append(' ');
+        for (int i = 0; i < path.length(); i++) {
+            char c = path.charAt(i);
+            line.append(Character.isWhitespace(c) ? '_' : c);
+        }
+        line.append(" b _ ").append(outgoing ? 'o' : 'i').append(" r ");
+        line.append(user == null ? "*" : user).append(" ftp 0 * ");
+        line.append(complete ? 'c' : 'i').append('\n');
+    }
+
+    private void appendJson(StringBuilder line, long now, String user, String remoteHost, String command, String path,
+                            boolean outgoing, long bytes, long durationNanos, String dataMode, boolean tls, boolean complete) {
+        long micros = durationNanos / 1000;
+        long throughput = durationNanos > 0 ? (long) (bytes * 1000000000.0 / durationNanos) : 0;
+        line.append("{\"time\":").append(now);
+        line.append(",\"user\":");
+        appendJsonString(line, user);
+        line.append(",\"remote\":");
+        appendJsonString(line, remoteHost);
+        line.append(",\"command\":\"").append(command).append('"');
+        line.append(",\"path\":");
+        appendJsonString(line, path);
+        line.append(",\"direction\":\"").append(outgoing ? "out" : "in").append('"');
+        line.append(",\"bytes\":").append(bytes);
+        line.append(",\"duration_us\":").append(micros);
+        line.append(",\"bytes_per_second\":").append(throughput);
+        line.append(",\"data_mode\":\"").append(dataMode).append('"');
+        line.append(",\"tls\":").append(tls);
+        line.append(",\"complete\":").append(complete);
+        line.append("}\n");
+    }
+
+    private static void appendJsonString(StringBuilder line, String value) {
+        if (value == null) {
+            line.append("null");
+            return;
+        }
+        line.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                line.append('\\').append(c);
+            } else if (c < 0x20) {
+                line.append(String.format("\\u%04x", (int) c));
+            } else {
+                line.append(c);
+            }
+        }
+        line.append('"');
+    }
+
+    private synchronized String formatDate(long now) {
+        long second = now / 1000;
+        if (second != cachedSecond) {
+            cachedSecond = second;
+            cachedDate = dateFormat.format(new Date(now));
+        }
+        return cachedDate;
+    }
+}
@@ -0,0 +1,56 @@
+package com.cs472;
+
+import java.util.Random;
+
+/**
+ * Checks that Metrics.Histogram decodes every bucket the way it encodes values into it. Run by "make check".
+ */
+public class HistogramCheck {
+    private static int checked = 0;
+
+    public static void main(String[] args) {
+        for (int bit = 0; bit < 63; bit++) {
+            long power = 1L << bit;
+            check(power - 1);
+            check(power);
+            check(power + 1);
+        }
+        check(Long.MAX_VALUE);
+        Random random = new Random(472);
+        for (int i = 0; i < 100000; i++) {
+            check((random.nextLong() >>> 1) >>> random.nextInt(63)); // Recorded values are never negative.
+        }
+
+        // Quantiles are reported as the upper bound of the bucket holding them.
+        Metrics.Histogram histogram = new Metrics().histogram("check", "", "Check.");
+        for (long value = 1; value <= 1000; value++) {
+            histogram.record(value);
+        }
+        expect(histogram.getCount() == 1000, "count is " + histogram.getCount());
+        long median = histogram.getQuantile(0.5);
+        expect(median >= 500 && median - 500 <= 500 / Metrics.Histogram.SUB_BUCKETS, "median is " + median);
+
+        System.out.println("HistogramCheck passed, " + checked + " values.");
+    }
+
+    /**
+     * The value's bucket must exist, its upper bound must be at least the value and within 1/SUB_BUCKETS of it,
+     * and the bucket below must end before the value.
+     */
+    private static void check(long value) {
+        int index = Metrics.Histogram.index(value);
+        long bound = Metrics.Histogram.upperBound(index);
+        expect(index >= 0 && index < Metrics.Histogram.BUCKETS, value + " is in bucket " + index);
+        expect(bound >= value, value + " is above its bucket's bound " + bound);
+        expect(bound - value <= value / Metrics.Histogram.SUB_BUCKETS, value + " is too far below its bucket's bound " + bound);
+        expect(index == 0 || Metrics.Histogram.upperBound(index - 1) < value, value + " also fits bucket " + (index - 1));
+        checked++;
+    }
+
+    private static void expect(boolean condition, String failure) {
+        if (!condition) {
+            System.out.println("HistogramCheck failed: " + failure);
+            System.exit(1);
+        }
+    }
+}